@@ -2,6 +2,7 @@ plugins {
     java
     id("org.springframework.boot") version "3.3.5"
     id("io.spring.dependency-management") version "1.1.6"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "com.vnc"
@@ -19,7 +20,28 @@ repositories {
 
 dependencies {
     implementation("org.springframework.boot:spring-boot-starter-websocket")
+    implementation("org.springframework.boot:spring-boot-starter-actuator")
+    runtimeOnly("io.micrometer:micrometer-registry-prometheus")
     implementation("org.bytedeco:javacv-platform:1.5.11")
+    testImplementation("org.springframework.boot:spring-boot-starter-test")
+}
+
+tasks.test {
+    useJUnitPlatform()
+    jvmArgs("-Djava.awt.headless=true")
+}
+
+jmh {
+    jmhVersion = "1.37"
+    fork = 1
+    warmupIterations = 3
+    iterations = 5
+    // Benchmarks share the recorded encoder output fixtures under src/test.
+    includeTests = true
+    // Swing benchmarks paint offscreen; no display is needed.
+    jvmArgsAppend = listOf("-Djava.awt.headless=true")
+    // e.g. ./gradlew jmh -PjmhInclude=BgrPacking
+    (findProperty("jmhInclude") as String?)?.let { includes = listOf(it) }
 }
 
 tasks.register<Exec>("generateKeystore") {
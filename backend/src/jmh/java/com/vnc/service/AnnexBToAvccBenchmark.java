@@ -0,0 +1,129 @@
+package com.vnc.service;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Annex B to AVCC rewriting for one access unit: the original copy into a
+ * {@code byte[]}, {@link H264EncoderService#parseAnnexBNals} NAL list and
+ * {@code ByteArrayOutputStream}, against the in-place scanner used by
+ * {@link H264EncoderService#annexBToAvcc}. Both produce the same AVCC bytes.
+ *
+ * <p>{@code synthetic-<n>} inputs are one x264-shaped access unit (SPS, PPS,
+ * SEI, slice of {@code n} bytes); payload bytes avoid start-code emulation as
+ * a real encoder's would. {@code recorded-<w>x<h>} inputs are
+ * {@link AnimatedPanel} packets from {@link RecordedStream}, and each
+ * invocation takes the next one, so keyframes and deltas are mixed as they
+ * are on the wire. Packets sit in direct memory, like {@code packet.data()}.
+ * {@link #ensureAvcc} times the one-off conversion of the input's SPS and PPS.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AnnexBToAvccBenchmark {
+
+    private static final String SYNTHETIC = "synthetic-";
+    private static final String RECORDED = "recorded-";
+    private static final int RECORDED_FRAMES = 200;
+
+    /** Synthetic: typical delta, typical 720p keyframe, large keyframe. Recorded: two resolutions. */
+    @Param({"synthetic-2048", "synthetic-65536", "synthetic-262144", "recorded-640x360", "recorded-1280x720"})
+    public String input;
+
+    private List<ByteBuffer> packets;
+    private byte[] extradata;
+    private int width;
+    private int height;
+    private ByteBuffer out;
+    private int next;
+
+    @Setup
+    public void setup() {
+        if (input.startsWith(RECORDED)) {
+            int[] dims = AnimatedSource.parseResolution(input.substring(RECORDED.length()));
+            width = dims[0];
+            height = dims[1];
+            RecordedStream stream = RecordedStream.record(width, height, RECORDED_FRAMES);
+            packets = stream.packets;
+            extradata = stream.extradata;
+        } else if (input.startsWith(SYNTHETIC)) {
+            width = 1280;
+            height = 720;
+            synthesize(Integer.parseInt(input.substring(SYNTHETIC.length())));
+        } else {
+            throw new IllegalArgumentException("Unknown input " + input);
+        }
+        int max = 0;
+        for (ByteBuffer p : packets) {
+            max = Math.max(max, p.remaining());
+        }
+        out = ByteBuffer.allocateDirect(max + max / 4 + 4);
+    }
+
+    private void synthesize(int sliceBytes) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        ByteBuffer au = ByteBuffer.allocate(sliceBytes + 256);
+        appendNal(au, new byte[]{0, 0, 0, 1}, 0x67, 12, random);
+        appendNal(au, new byte[]{0, 0, 0, 1}, 0x68, 4, random);
+        extradata = new byte[au.position()];
+        au.get(0, extradata);
+        appendNal(au, new byte[]{0, 0, 1}, 0x06, 40, random);
+        appendNal(au, new byte[]{0, 0, 1}, 0x65, sliceBytes, random);
+        au.flip();
+        ByteBuffer packet = ByteBuffer.allocateDirect(au.remaining());
+        packet.put(au).flip();
+        packets = List.of(packet);
+    }
+
+    private static void appendNal(ByteBuffer au, byte[] startCode, int header, int size,
+                                  ThreadLocalRandom random) {
+        au.put(startCode);
+        au.put((byte) header);
+        for (int i = 0; i < size; i++) {
+            au.put((byte) random.nextInt(2, 256));
+        }
+    }
+
+    private ByteBuffer nextPacket() {
+        int i = next;
+        next = i + 1 == packets.size() ? 0 : i + 1;
+        return packets.get(i);
+    }
+
+    @Benchmark
+    public byte[] copyAndParse() {
+        ByteBuffer packet = nextPacket();
+        byte[] raw = new byte[packet.remaining()];
+        packet.get(0, raw);
+        List<byte[]> nals = H264EncoderService.parseAnnexBNals(raw, raw.length);
+        var avcc = new ByteArrayOutputStream(raw.length);
+        for (byte[] nal : nals) {
+            if (nal.length == 0) continue;
+            int nalType = nal[0] & 0x1F;
+            if (nalType == 7 || nalType == 8) continue;
+            avcc.write((nal.length >> 24) & 0xFF);
+            avcc.write((nal.length >> 16) & 0xFF);
+            avcc.write((nal.length >> 8) & 0xFF);
+            avcc.write(nal.length & 0xFF);
+            avcc.write(nal, 0, nal.length);
+        }
+        return avcc.toByteArray();
+    }
+
+    @Benchmark
+    public int inPlaceScan() {
+        ByteBuffer packet = nextPacket();
+        out.clear();
+        return H264EncoderService.annexBToAvcc(packet, packet.remaining(), out);
+    }
+
+    @Benchmark
+    public byte[] ensureAvcc() {
+        return H264EncoderService.ensureAvcc(extradata, width, height);
+    }
+}
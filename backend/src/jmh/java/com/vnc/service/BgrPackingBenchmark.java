@@ -0,0 +1,62 @@
+package com.vnc.service;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raster to BGR0 packing for one frame: the original per-byte loop against
+ * the bulk row copy used by {@link FrameScaler.packBgr0}, for a full
+ * frame and for a dirty band.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BgrPackingBenchmark {
+
+    @Param({"1280x720", "1920x1080"})
+    public String resolution;
+
+    private int width;
+    private int height;
+    private int[] pixels;
+    private ByteBuffer frame;
+
+    @Setup
+    public void setup() {
+        String[] dims = resolution.split("x");
+        width = Integer.parseInt(dims[0]);
+        height = Integer.parseInt(dims[1]);
+        pixels = ThreadLocalRandom.current().ints((long) width * height, 0, 0x1000000).toArray();
+        frame = ByteBuffer.allocateDirect(width * height * 4);
+    }
+
+    @Benchmark
+    public ByteBuffer perBytePut() {
+        ByteBuffer buf = frame;
+        for (int i = 0; i < pixels.length; i++) {
+            int px = pixels[i];
+            buf.put(i * 4,     (byte) (px & 0xFF));
+            buf.put(i * 4 + 1, (byte) ((px >> 8) & 0xFF));
+            buf.put(i * 4 + 2, (byte) ((px >> 16) & 0xFF));
+            buf.put(i * 4 + 3, (byte) 0xFF);
+        }
+        return buf;
+    }
+
+    @Benchmark
+    public ByteBuffer bulkIntCopy() {
+        FrameScaler.packBgr0(pixels, frame, width, 0, height, width * 4);
+        return frame;
+    }
+
+    /** Typical damage-driven upload: a band of one eighth of the rows. */
+    @Benchmark
+    public ByteBuffer bulkIntCopyDirtyBand() {
+        int rows = height / 8;
+        FrameScaler.packBgr0(pixels, frame, width, (height - rows) / 2, rows, width * 4);
+        return frame;
+    }
+}
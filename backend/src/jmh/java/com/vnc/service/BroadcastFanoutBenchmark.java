@@ -0,0 +1,82 @@
+package com.vnc.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link BroadcastService#broadcastFrame} to N viewers, timed until every
+ * viewer's send has completed, so it covers queueing, the per-client drain
+ * threads and buffer reference counting. Sessions are proxies whose
+ * {@code sendMessage} returns at once; the socket write itself is not
+ * measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BroadcastFanoutBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    public int clients;
+
+    /** Typical delta, typical 720p keyframe. */
+    @Param({"2048", "65536"})
+    public int frameBytes;
+
+    private BroadcastService broadcast;
+    private final FrameBufferPool pool = new FrameBufferPool(4);
+    private byte[] payload;
+    private volatile CountDownLatch delivered;
+
+    @Setup
+    public void setup() throws InterruptedException {
+        payload = new byte[frameBytes];
+        ThreadLocalRandom.current().nextBytes(payload);
+        PipelineMetrics metrics = new PipelineMetrics(new SimpleMeterRegistry(), "bench");
+        broadcast = new BroadcastService(metrics.forRendition("bench"), 0, 0);
+        for (int i = 0; i < clients; i++) {
+            broadcast.addClient("c" + i, session("c" + i));
+        }
+        // New viewers wait for an IDR before taking deltas.
+        fanOut(true);
+    }
+
+    @Benchmark
+    public void broadcastDelta() throws InterruptedException {
+        fanOut(false);
+    }
+
+    private void fanOut(boolean keyframe) throws InterruptedException {
+        delivered = new CountDownLatch(clients);
+        FrameBufferPool.Frame frame = pool.acquire(frameBytes);
+        frame.buffer().put(payload).flip();
+        try {
+            broadcast.broadcastFrame(frame, keyframe, System.nanoTime());
+        } finally {
+            frame.release();
+        }
+        delivered.await();
+    }
+
+    private WebSocketSession session(String id) {
+        return (WebSocketSession) Proxy.newProxyInstance(
+                WebSocketSession.class.getClassLoader(), new Class<?>[]{WebSocketSession.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "sendMessage" -> {
+                        delivered.countDown();
+                        yield null;
+                    }
+                    case "getId" -> id;
+                    case "isOpen" -> true;
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    case "toString" -> "BenchSession[" + id + "]";
+                    default -> null;
+                });
+    }
+}
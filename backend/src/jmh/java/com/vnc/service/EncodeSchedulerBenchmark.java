@@ -0,0 +1,130 @@
+package com.vnc.service;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives N synthetic apps at 20 FPS through the shared {@link EncodeScheduler}
+ * for a fixed window. Capture and encode are simulated with busy-spins so the
+ * result reflects scheduling, not Swing or x264. Reports aggregate frames per
+ * second and per-app fairness (minimum FPS and Jain's index, 1.0 = perfectly
+ * even) as the app count grows past what the pool can serve.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class EncodeSchedulerBenchmark {
+
+    private static final long PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long WINDOW_MS = 3000;
+
+    @Param({"8", "64", "256", "1024"})
+    public int apps;
+
+    @Param({"200"})
+    public int captureMicros;
+
+    @Param({"2000"})
+    public int encodeMicros;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Fairness {
+        public double totalFps;
+        public double minAppFps;
+        public double jainIndex;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            totalFps = 0;
+            minAppFps = 0;
+            jainIndex = 0;
+        }
+    }
+
+    @Benchmark
+    public void schedule(Fairness fairness) throws InterruptedException {
+        EncodeScheduler scheduler = new EncodeScheduler();
+        List<SyntheticApp> tasks = new ArrayList<>(apps);
+        List<EncodeScheduler.Registration> regs = new ArrayList<>(apps);
+
+        scheduler.start();
+        for (int i = 0; i < apps; i++) {
+            SyntheticApp task = new SyntheticApp(
+                    TimeUnit.MICROSECONDS.toNanos(captureMicros), TimeUnit.MICROSECONDS.toNanos(encodeMicros));
+            tasks.add(task);
+            regs.add(scheduler.register("bench-" + i, task, PERIOD_NANOS));
+        }
+        Thread.sleep(WINDOW_MS);
+        regs.forEach(EncodeScheduler.Registration::cancel);
+        scheduler.stop();
+
+        double seconds = WINDOW_MS / 1000.0;
+        double sum = 0;
+        double sumSquares = 0;
+        double min = Double.MAX_VALUE;
+        for (SyntheticApp task : tasks) {
+            double fps = task.frames.get() / seconds;
+            sum += fps;
+            sumSquares += fps * fps;
+            min = Math.min(min, fps);
+        }
+        fairness.totalFps = sum;
+        fairness.minAppFps = min;
+        fairness.jainIndex = sumSquares == 0 ? 0 : (sum * sum) / (apps * sumSquares);
+    }
+
+    private static final class SyntheticApp implements EncodeScheduler.Task {
+        private static final int BUFFERS = 3;
+
+        final long captureNanos;
+        final long encodeNanos;
+        final AtomicInteger queued = new AtomicInteger();
+        final AtomicLong frames = new AtomicLong();
+
+        SyntheticApp(long captureNanos, long encodeNanos) {
+            this.captureNanos = captureNanos;
+            this.encodeNanos = encodeNanos;
+        }
+
+        @Override
+        public boolean isActive() {
+            return true;
+        }
+
+        @Override
+        public boolean capture() {
+            if (queued.get() >= BUFFERS) return false;
+            spin(captureNanos);
+            queued.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public void encodeNext() {
+            if (queued.get() == 0) return;
+            spin(encodeNanos);
+            queued.decrementAndGet();
+            frames.incrementAndGet();
+        }
+
+        @Override
+        public boolean hasQueuedFrames() {
+            return queued.get() > 0;
+        }
+
+        private static void spin(long nanos) {
+            long end = System.nanoTime() + nanos;
+            while (System.nanoTime() < end) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.vnc.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.Rectangle;
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.ffmpeg.global.avutil.*;
+
+/**
+ * {@link H264EncoderService#encode} alone, per resolution and x264 preset:
+ * {@code avcodec_send_frame}/{@code receive_packet}, the AVCC rewrite and
+ * the pooled output buffer. Input is a loop of pre-converted YUV pictures of
+ * {@link AnimatedPanel}, so capture and scaling are not measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EncoderBenchmark {
+
+    private static final int LOOP_FRAMES = 60;
+
+    @Param({"320x180", "640x360", "1280x720", "1920x1080"})
+    public String resolution;
+
+    @Param({"ultrafast", "veryfast"})
+    public String preset;
+
+    private H264EncoderService encoder;
+    private final AVFrame[] pictures = new AVFrame[LOOP_FRAMES];
+    private int next;
+
+    @Setup
+    public void setup() {
+        av_log_set_level(AV_LOG_ERROR);
+        int[] dims = AnimatedSource.parseResolution(resolution);
+        int width = dims[0];
+        int height = dims[1];
+        PipelineMetrics metrics = new PipelineMetrics(new SimpleMeterRegistry(), "bench");
+
+        FrameScaler scaler = new FrameScaler(width, height, metrics);
+        AnimatedSource source = new AnimatedSource(width, height);
+        Rectangle bounds = new Rectangle(width, height);
+        scaler.start();
+        try {
+            for (int i = 0; i < LOOP_FRAMES; i++) {
+                scaler.update(source.next(), bounds);
+                AVFrame picture = av_frame_alloc();
+                picture.format(AV_PIX_FMT_YUV420P);
+                picture.width(width);
+                picture.height(height);
+                av_frame_get_buffer(picture, 32);
+                av_frame_copy(picture, scaler.frameFor(width, height));
+                pictures[i] = picture;
+            }
+        } finally {
+            scaler.stop();
+        }
+
+        encoder = new H264EncoderService(metrics.forRendition("bench"));
+        encoder.start(width, height, 20, preset);
+    }
+
+    @TearDown
+    public void tearDown() {
+        encoder.stop();
+        for (AVFrame picture : pictures) {
+            av_frame_free(picture);
+        }
+    }
+
+    @Benchmark
+    public int encode() {
+        AVFrame picture = pictures[next];
+        next = (next + 1) % LOOP_FRAMES;
+        FrameBufferPool.Frame frame = encoder.encode(picture);
+        if (frame == null) return 0;
+        int size = frame.buffer().limit();
+        frame.release();
+        return size;
+    }
+}
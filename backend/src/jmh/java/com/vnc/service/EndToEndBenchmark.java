@@ -0,0 +1,83 @@
+package com.vnc.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import javax.swing.SwingUtilities;
+import java.awt.Rectangle;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.ffmpeg.global.avutil.*;
+
+/**
+ * One headless frame of {@link AnimatedPanel} through the production path:
+ * animation tick and full repaint on the EDT (as {@code FramePipeline}
+ * captures), BGR0 upload and YUV conversion in {@link FrameScaler}, then an
+ * encode for each rendition. With 3 renditions the half- and quarter-size
+ * downscales are included.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EndToEndBenchmark {
+
+    @Param({"640x360", "1280x720"})
+    public String resolution;
+
+    @Param({"1", "3"})
+    public int renditions;
+
+    private AnimatedSource source;
+    private FrameScaler scaler;
+    private Rectangle bounds;
+    private final List<H264EncoderService> encoders = new ArrayList<>();
+    private final List<int[]> sizes = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        av_log_set_level(AV_LOG_ERROR);
+        int[] dims = AnimatedSource.parseResolution(resolution);
+        PipelineMetrics metrics = new PipelineMetrics(new SimpleMeterRegistry(), "bench");
+        source = new AnimatedSource(dims[0], dims[1]);
+        bounds = new Rectangle(dims[0], dims[1]);
+        scaler = new FrameScaler(dims[0], dims[1], metrics);
+        scaler.start();
+        for (int i = 0, divisor = 1; i < renditions; i++, divisor *= 2) {
+            int w = (dims[0] / divisor) & ~1;
+            int h = (dims[1] / divisor) & ~1;
+            H264EncoderService encoder = new H264EncoderService(metrics.forRendition(h + "p"));
+            encoder.start(w, h, 20, "ultrafast");
+            encoders.add(encoder);
+            sizes.add(new int[]{w, h});
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        encoders.forEach(H264EncoderService::stop);
+        scaler.stop();
+    }
+
+    @Benchmark
+    public int captureAndEncode() throws InterruptedException, InvocationTargetException {
+        SwingUtilities.invokeAndWait(() -> {
+            source.panel().step();
+            source.paint();
+        });
+        scaler.update(source.image(), bounds);
+
+        int bytes = 0;
+        for (int i = 0; i < encoders.size(); i++) {
+            int[] size = sizes.get(i);
+            FrameBufferPool.Frame frame = encoders.get(i).encode(scaler.frameFor(size[0], size[1]));
+            if (frame != null) {
+                bytes += frame.buffer().limit();
+                frame.release();
+            }
+        }
+        return bytes;
+    }
+}
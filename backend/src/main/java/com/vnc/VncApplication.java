@@ -2,13 +2,14 @@ package com.vnc;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
 
 @SpringBootApplication
+@ConfigurationPropertiesScan
 public class VncApplication {
 
     public static void main(String[] args) {
-        SpringApplication app = new SpringApplication(VncApplication.class);
-        app.setHeadless(false);
-        app.run(args);
+        // Headless unless vnc.apps.render=window; see AppRegistry.
+        SpringApplication.run(VncApplication.class, args);
     }
 }
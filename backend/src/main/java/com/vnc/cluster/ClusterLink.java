@@ -0,0 +1,228 @@
+package com.vnc.cluster;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One origin–relay connection: a blocking TCP channel carrying framed
+ * messages in both directions. Every message has the same layout, so one
+ * reader serves both ends. Multi-byte fields are big-endian, like the
+ * viewer protocol.
+ *
+ * <pre>
+ * type:u8  length:u32  app:str8  key:str8  payload     str8 = len:u8 UTF-8
+ *
+ * relay → origin
+ * HELLO             0x01  app = node id, key = secret
+ * SUBSCRIBE         0x02  key = rendition
+ * UNSUBSCRIBE       0x03  key = rendition
+ * KEYFRAME_REQUEST  0x04  key = rendition
+ * CONTROL_TEXT      0x05  key = viewer id, payload = JSON control message
+ * CONTROL_BINARY    0x06  key = viewer id, payload = binary control message
+ * VIEWER_LEFT       0x07  key = viewer id
+ *
+ * origin → relay
+ * APPS              0x81  payload = JSON app list, as GET /api/apps
+ * CONFIG            0x82  key = rendition, payload = codec config message
+ * FRAME             0x83  key = rendition, payload = frame message
+ * LOCK              0x84  key = controller's viewer id, empty when unlocked
+ * APP_CLOSED        0x85  the app was deleted, or has no such rendition
+ * </pre>
+ *
+ * CONFIG and FRAME payloads are the viewer wire messages byte for byte, so
+ * the origin sends the encoder's buffers as they are and a relay queues
+ * them for its viewers unchanged. Sends are serialized by a lock and written
+ * with one gathering write; reads belong to a single thread, and a read
+ * message's payload is only valid until the next read.
+ *
+ * <p>The reading thread must never block in {@link #send}: if both ends'
+ * readers waited for a full socket buffer to drain, neither would read
+ * again. Messages written in response to a read, and any other small
+ * message whose sender must not wait on the peer, are {@link #post posted}
+ * instead, and a writer thread of the link's own sends them in order.
+ * Posted messages change state at the peer (subscriptions, lock requests,
+ * departures), so none is ever dropped: if the outbox overflows, the link
+ * closes, and the reconnect that follows rebuilds that state from scratch.
+ */
+final class ClusterLink implements AutoCloseable {
+
+    static final byte HELLO = 0x01;
+    static final byte SUBSCRIBE = 0x02;
+    static final byte UNSUBSCRIBE = 0x03;
+    static final byte KEYFRAME_REQUEST = 0x04;
+    static final byte CONTROL_TEXT = 0x05;
+    static final byte CONTROL_BINARY = 0x06;
+    static final byte VIEWER_LEFT = 0x07;
+    static final byte APPS = (byte) 0x81;
+    static final byte CONFIG = (byte) 0x82;
+    static final byte FRAME = (byte) 0x83;
+    static final byte LOCK = (byte) 0x84;
+    static final byte APP_CLOSED = (byte) 0x85;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int HEADER_BYTES = 5;
+    /** Larger than any viewer message (2 MB) plus the names. */
+    private static final int MAX_MESSAGE_BYTES = 4 * 1024 * 1024;
+    /** Posted messages waiting for the writer; one more closes the link. */
+    private static final int OUTBOX_MESSAGES = 1024;
+
+    private final SocketChannel channel;
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final ByteBuffer sendHeader = ByteBuffer.allocate(HEADER_BYTES + 2 * 256);
+    private final ByteBuffer readHeader = ByteBuffer.allocate(HEADER_BYTES);
+    private ByteBuffer readBody = ByteBuffer.allocate(64 * 1024);
+    private final BlockingQueue<Posted> outbox = new ArrayBlockingQueue<>(OUTBOX_MESSAGES);
+    private final Thread writer;
+
+    ClusterLink(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        channel.socket().setTcpNoDelay(true);
+        this.writer = Thread.ofVirtual().name("vnc-cluster-link-writer").start(this::writeLoop);
+    }
+
+    static ClusterLink connect(SocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        try {
+            return new ClusterLink(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** A received message; {@code payload} is a view of the read buffer. */
+    record Message(byte type, String app, String key, ByteBuffer payload) {
+
+        String payloadText() {
+            return StandardCharsets.UTF_8.decode(payload.duplicate()).toString();
+        }
+    }
+
+    void send(byte type, String app, String key) throws IOException {
+        send(type, app, key, EMPTY);
+    }
+
+    /** Sends one message; blocks while the peer is not reading. {@code payload} is read from its position and not consumed. */
+    void send(byte type, String app, String key, ByteBuffer payload) throws IOException {
+        ByteBuffer body = payload.duplicate();
+        sendLock.lock();
+        try {
+            writeHeader(type, app, key, body.remaining());
+            ByteBuffer[] buffers = {sendHeader, body};
+            while (sendHeader.hasRemaining() || body.hasRemaining()) {
+                channel.write(buffers);
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    boolean post(byte type, String app, String key) {
+        return post(type, app, key, EMPTY);
+    }
+
+    /**
+     * Queues a message for the link's writer thread and returns at once,
+     * copying {@code payload} from its position. Returns false if the link has
+     * closed, or closes it now because the peer has stopped reading for
+     * longer than the outbox holds.
+     */
+    boolean post(byte type, String app, String key, ByteBuffer payload) {
+        if (!channel.isOpen()) return false;
+        ByteBuffer copy = ByteBuffer.allocate(payload.remaining()).put(payload.duplicate()).flip();
+        if (outbox.offer(new Posted(type, app, key, copy))) return true;
+        close();
+        return false;
+    }
+
+    /** Reads the next message; throws {@link EOFException} once the peer has closed. */
+    Message read() throws IOException {
+        readHeader.clear();
+        readFully(readHeader);
+        byte type = readHeader.get(0);
+        int length = readHeader.getInt(1);
+        if (length < 2 || length > MAX_MESSAGE_BYTES) {
+            throw new IOException("Bad cluster message length " + length);
+        }
+        if (readBody.capacity() < length) {
+            readBody = ByteBuffer.allocate(Integer.highestOneBit(length - 1) << 1);
+        }
+        readBody.clear().limit(length);
+        readFully(readBody);
+        readBody.flip();
+        String app = readString(readBody);
+        String key = readString(readBody);
+        return new Message(type, app, key, readBody.slice());
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        writer.interrupt();
+    }
+
+    SocketAddress remoteAddress() {
+        try {
+            return channel.getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private record Posted(byte type, String app, String key, ByteBuffer payload) {}
+
+    /** Sends posted messages until the link closes; a failed send closes it, which the reader sees. */
+    private void writeLoop() {
+        try {
+            while (channel.isOpen()) {
+                Posted m = outbox.take();
+                send(m.type(), m.app(), m.key(), m.payload());
+            }
+        } catch (InterruptedException | IOException e) {
+            close();
+        }
+    }
+
+    /** Caller holds the send lock. */
+    private void writeHeader(byte type, String app, String key, int payloadBytes) throws IOException {
+        byte[] appBytes = str8(app);
+        byte[] keyBytes = str8(key);
+        sendHeader.clear();
+        sendHeader.put(type);
+        sendHeader.putInt(2 + appBytes.length + keyBytes.length + payloadBytes);
+        sendHeader.put((byte) appBytes.length).put(appBytes);
+        sendHeader.put((byte) keyBytes.length).put(keyBytes);
+        sendHeader.flip();
+    }
+
+    private void readFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0) throw new EOFException();
+        }
+    }
+
+    private static byte[] str8(String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 255) throw new IOException("Cluster message name too long: " + s);
+        return bytes;
+    }
+
+    private static String readString(ByteBuffer buf) throws IOException {
+        if (!buf.hasRemaining()) throw new IOException("Truncated cluster message");
+        int len = buf.get() & 0xFF;
+        if (buf.remaining() < len) throw new IOException("Truncated cluster message");
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+        buf.position(buf.position() + len);
+        return s;
+    }
+}
@@ -0,0 +1,386 @@
+package com.vnc.cluster;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.vnc.config.ClusterProperties;
+import com.vnc.model.LockStatusMessage;
+import com.vnc.service.AppInstance;
+import com.vnc.service.AppRegistry;
+import com.vnc.service.BroadcastService;
+import com.vnc.service.Rendition;
+import com.vnc.websocket.VncWebSocketHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.Principal;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The origin's end of the relay links ({@code vnc.cluster.role=origin}).
+ * Each relay holds one connection, over which it subscribes to the
+ * renditions its viewers watch. A subscription joins the rendition like any
+ * viewer, through a session that writes to the link, so the relay gets the
+ * codec config and GOP burst on joining, and a slow link has deltas dropped
+ * up to the next keyframe like a slow viewer. The encoder's buffers go onto
+ * the link as they are. An app is encoded once however many relays watch it.
+ *
+ * <p>Relays forward their viewers' control messages unchanged, tagged with a
+ * cluster-wide viewer id ({@code <node id>:<session id>}), and they are
+ * applied as a local viewer's would be. Lock changes go back as LOCK
+ * messages through each subscription's lock status slot, so they coalesce
+ * like a viewer's. When a relay disconnects, its subscriptions end and any
+ * lock one of its viewers held is released.
+ *
+ * <p>All of a relay's subscriptions write through its one link and its send
+ * lock, and {@link LinkSession#sendMessage} blocks the subscription's drain
+ * while the relay is not reading. One slow relay link therefore stalls every
+ * rendition it carries: each of their queues for that relay fills and drops
+ * deltas up to the next keyframe. Other relays and the origin's own viewers
+ * have queues and drains of their own and are not held up.
+ */
+@Component
+@ConditionalOnProperty(prefix = "vnc.cluster", name = "role", havingValue = "origin")
+public class OriginServer implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(OriginServer.class);
+
+    private static final long APPS_PUSH_INTERVAL_MS = 1000;
+    private static final byte CONFIG_MARKER = (byte) 0xFF;
+
+    private final AppRegistry appRegistry;
+    private final VncWebSocketHandler controlHandler;
+    private final ObjectMapper objectMapper;
+    private final ClusterProperties properties;
+    private final ConcurrentMap<String, RelayConnection> relays = new ConcurrentHashMap<>();
+    private ServerSocketChannel server;
+    private ScheduledExecutorService appsPusher;
+    private volatile boolean running;
+
+    public OriginServer(AppRegistry appRegistry, VncWebSocketHandler controlHandler, ObjectMapper objectMapper,
+                        ClusterProperties properties) {
+        this.appRegistry = appRegistry;
+        this.controlHandler = controlHandler;
+        this.objectMapper = objectMapper;
+        this.properties = properties;
+    }
+
+    @Override
+    public void start() {
+        InetSocketAddress address = new InetSocketAddress(properties.bindAddress(), properties.port());
+        try {
+            server = ServerSocketChannel.open().bind(address);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot listen for relays on " + address, e);
+        }
+        running = true;
+        Thread.ofPlatform().daemon().name("vnc-origin-accept").start(this::acceptLoop);
+        appsPusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "vnc-origin-apps");
+            t.setDaemon(true);
+            return t;
+        });
+        // The app list also carries load and running state, so it is re-sent whenever it changes.
+        appsPusher.scheduleWithFixedDelay(this::pushApps,
+                APPS_PUSH_INTERVAL_MS, APPS_PUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        log.info("Origin listening for relays on {}", address);
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                SocketChannel channel = server.accept();
+                RelayConnection relay = new RelayConnection(new ClusterLink(channel));
+                Thread.ofVirtual().name("vnc-origin-relay").start(relay::run);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                log.warn("Failed to accept a relay: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void pushApps() {
+        if (relays.isEmpty()) return;
+        try {
+            String apps = appsJson();
+            relays.values().forEach(relay -> relay.pushApps(apps));
+        } catch (Exception e) {
+            log.warn("Failed to push the app list to relays", e);
+        }
+    }
+
+    private String appsJson() throws JsonProcessingException {
+        return objectMapper.writeValueAsString(appRegistry.listApps());
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (appsPusher != null) {
+            appsPusher.shutdownNow();
+        }
+        try {
+            if (server != null) server.close();
+        } catch (IOException ignored) {
+        }
+        relays.values().forEach(RelayConnection::close);
+        log.info("Origin stopped");
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /** After {@link AppRegistry}, so apps exist before relays can subscribe, and relays are dropped before apps stop. */
+    @Override
+    public int getPhase() {
+        return 2;
+    }
+
+    private boolean secretMatches(String presented) {
+        return MessageDigest.isEqual(presented.getBytes(StandardCharsets.UTF_8),
+                properties.secret().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** One relay's connection; its messages are read and applied on one virtual thread. */
+    private final class RelayConnection {
+        private final ClusterLink link;
+        /** Subscriptions by {@code <app id>/<rendition>}. */
+        private final ConcurrentMap<String, LinkSession> subscriptions = new ConcurrentHashMap<>();
+        /** Apps this relay's viewers sent control messages to; their locks are released when it leaves. */
+        private final Set<String> controlledApps = ConcurrentHashMap.newKeySet();
+        private volatile String nodeId;
+        private volatile String viewerPrefix;
+        private volatile String lastApps;
+        private boolean closed; // guarded by this
+
+        RelayConnection(ClusterLink link) {
+            this.link = link;
+        }
+
+        void run() {
+            try {
+                if (!handshake()) return;
+                pushApps(appsJson());
+                while (true) {
+                    handle(link.read());
+                }
+            } catch (EOFException e) {
+                // The relay closed the link.
+            } catch (IOException e) {
+                log.warn("Link to relay '{}' failed: {}", nodeId, e.getMessage());
+            } finally {
+                close();
+            }
+        }
+
+        private boolean handshake() throws IOException {
+            ClusterLink.Message hello = link.read();
+            if (hello.type() != ClusterLink.HELLO || hello.app().isEmpty() || !secretMatches(hello.key())) {
+                log.warn("Rejected a relay from {}: bad handshake", link.remoteAddress());
+                return false;
+            }
+            nodeId = hello.app();
+            viewerPrefix = nodeId + ":";
+            if (relays.putIfAbsent(nodeId, this) != null) {
+                log.warn("Rejected a relay from {}: node id '{}' is already connected", link.remoteAddress(), nodeId);
+                return false;
+            }
+            log.info("Relay '{}' connected from {}", nodeId, link.remoteAddress());
+            return true;
+        }
+
+        private void handle(ClusterLink.Message message) throws IOException {
+            AppInstance app = appRegistry.get(message.app());
+            switch (message.type()) {
+                case ClusterLink.SUBSCRIBE -> subscribe(app, message.app(), message.key());
+                case ClusterLink.UNSUBSCRIBE -> unsubscribe(message.app(), message.key());
+                case ClusterLink.KEYFRAME_REQUEST -> {
+                    Rendition rendition = app != null ? app.getRendition(message.key()) : null;
+                    if (rendition != null) rendition.requestKeyframe();
+                }
+                case ClusterLink.CONTROL_TEXT -> {
+                    if (app == null || !ownViewer(message.key())) return;
+                    controlledApps.add(app.getId());
+                    try {
+                        controlHandler.handleRelayedControl(message.key(), app, message.payloadText());
+                    } catch (JsonProcessingException e) {
+                        log.warn("Malformed control message from relay '{}' viewer {}", nodeId, message.key());
+                    }
+                }
+                case ClusterLink.CONTROL_BINARY -> {
+                    if (app == null || !ownViewer(message.key())) return;
+                    controlledApps.add(app.getId());
+                    controlHandler.handleRelayedControl(message.key(), app, message.payload());
+                }
+                case ClusterLink.VIEWER_LEFT -> {
+                    if (app != null && ownViewer(message.key())) controlHandler.releaseControl(message.key(), app);
+                }
+                default -> log.warn("Unknown message type {} from relay '{}'", message.type(), nodeId);
+            }
+        }
+
+        /** A relay can only act for its own viewers. */
+        private boolean ownViewer(String viewerId) {
+            return viewerId.startsWith(viewerPrefix);
+        }
+
+        /** Runs on the link's reader, so replies are posted rather than sent. */
+        private void subscribe(AppInstance app, String appId, String renditionName) {
+            String key = appId + "/" + renditionName;
+            if (subscriptions.containsKey(key)) return;
+            Rendition rendition = app != null ? app.getRendition(renditionName) : null;
+            if (rendition == null) {
+                link.post(ClusterLink.APP_CLOSED, appId, renditionName);
+                return;
+            }
+            LinkSession session = new LinkSession(nodeId + "/" + rendition.getName(), key, app, rendition.getName());
+            subscriptions.put(key, session);
+            if (!app.addClient(session.getId(), session, rendition, 0)) {
+                // Deleted between the lookup and the join.
+                subscriptions.remove(key);
+                link.post(ClusterLink.APP_CLOSED, appId, "");
+                return;
+            }
+            app.sendLockStatusTo(session.getId());
+            log.info("Relay '{}' subscribed to app '{}' rendition {}", nodeId, appId, rendition.getName());
+        }
+
+        private void unsubscribe(String appId, String renditionName) {
+            LinkSession session = subscriptions.remove(appId + "/" + renditionName);
+            if (session != null) {
+                session.detach();
+                log.info("Relay '{}' unsubscribed from app '{}' rendition {}", nodeId, appId, renditionName);
+            }
+        }
+
+        /** Posted, as the first push runs on the link's reader. */
+        void pushApps(String apps) {
+            if (apps.equals(lastApps)) return;
+            if (link.post(ClusterLink.APPS, "", "", ByteBuffer.wrap(apps.getBytes(StandardCharsets.UTF_8)))) {
+                lastApps = apps;
+            }
+        }
+
+        synchronized void close() {
+            if (closed) return;
+            closed = true;
+            link.close();
+            if (nodeId == null || !relays.remove(nodeId, this)) return;
+            subscriptions.values().forEach(LinkSession::detach);
+            subscriptions.clear();
+            for (String appId : controlledApps) {
+                AppInstance app = appRegistry.get(appId);
+                String controller = app != null ? app.getControlLockService().getController() : null;
+                if (controller != null && ownViewer(controller)) {
+                    controlHandler.releaseControl(controller, app);
+                }
+            }
+            log.info("Relay '{}' disconnected", nodeId);
+        }
+
+        /**
+         * A relay's subscription to one rendition, as the rendition's
+         * {@link BroadcastService} sees it: a viewer whose messages are written
+         * to the link. Lock status messages become LOCK messages carrying the
+         * current controller, which the relay needs to tell its viewers apart.
+         */
+        private final class LinkSession implements WebSocketSession {
+            private final String id;
+            private final String key;
+            private final AppInstance app;
+            private final String rendition;
+            private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+            private volatile boolean open = true;
+
+            LinkSession(String id, String key, AppInstance app, String rendition) {
+                this.id = id;
+                this.key = key;
+                this.app = app;
+                this.rendition = rendition;
+                attributes.put(BroadcastService.BINARY_CONTROL_ATTRIBUTE, true);
+            }
+
+            @Override
+            public void sendMessage(WebSocketMessage<?> message) throws IOException {
+                if (!open) throw new IOException("Relay subscription " + key + " has ended");
+                if (!(message instanceof BinaryMessage binary)) return;
+                ByteBuffer payload = binary.getPayload();
+                byte marker = payload.get(payload.position());
+                if (marker == LockStatusMessage.BINARY_MARKER) {
+                    String controller = app.getControlLockService().getController();
+                    link.send(ClusterLink.LOCK, app.getId(), controller != null ? controller : "");
+                } else {
+                    link.send(marker == CONFIG_MARKER ? ClusterLink.CONFIG : ClusterLink.FRAME,
+                            app.getId(), rendition, payload);
+                }
+            }
+
+            /** Leaves the rendition, e.g. when the relay unsubscribes or disconnects. */
+            void detach() {
+                open = false;
+                app.removeClient(id);
+            }
+
+            /** The rendition closes its viewers when the app is deleted; the relay closes its own. */
+            @Override
+            public void close(CloseStatus status) {
+                if (!open) return;
+                open = false;
+                subscriptions.remove(key, this);
+                if (!link.post(ClusterLink.APP_CLOSED, app.getId(), "")) {
+                    log.debug("Failed to tell relay '{}' that app '{}' closed", nodeId, app.getId());
+                }
+            }
+
+            @Override
+            public void close() {
+                close(CloseStatus.NORMAL);
+            }
+
+            @Override public String getId() { return id; }
+            @Override public boolean isOpen() { return open; }
+            @Override public Map<String, Object> getAttributes() { return attributes; }
+            @Override public URI getUri() { return null; }
+            @Override public HttpHeaders getHandshakeHeaders() { return new HttpHeaders(); }
+            @Override public Principal getPrincipal() { return null; }
+            @Override public InetSocketAddress getLocalAddress() { return null; }
+            @Override public InetSocketAddress getRemoteAddress() {
+                return link.remoteAddress() instanceof InetSocketAddress a ? a : null;
+            }
+            @Override public String getAcceptedProtocol() { return null; }
+            @Override public void setTextMessageSizeLimit(int limit) {}
+            @Override public int getTextMessageSizeLimit() { return Integer.MAX_VALUE; }
+            @Override public void setBinaryMessageSizeLimit(int limit) {}
+            @Override public int getBinaryMessageSizeLimit() { return Integer.MAX_VALUE; }
+            @Override public List<WebSocketExtension> getExtensions() { return List.of(); }
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package com.vnc.cluster;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.vnc.config.AppProperties;
+import com.vnc.config.ClusterProperties;
+import com.vnc.service.AppInstance;
+import com.vnc.service.AppRegistry;
+import com.vnc.service.BroadcastService;
+import com.vnc.service.FrameBufferPool;
+import com.vnc.service.LockStatusPublisher;
+import com.vnc.service.PipelineMetrics;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+
+/**
+ * A relay node ({@code vnc.cluster.role=relay}): serves viewers from the
+ * origin's encoded streams, so egress scales with relays while each app is
+ * still encoded once. It keeps one link to the origin and subscribes to a
+ * rendition while it has viewers for it. Each rendition has its own
+ * {@link BroadcastService}, with the same GOP cache, send queues and
+ * backpressure as on the origin; frames from the link are copied once into
+ * pooled buffers and fanned out from there.
+ *
+ * <p>Viewers' control messages are forwarded to the origin unchanged, which
+ * owns the apps, their input and their lock. The origin reports the lock
+ * holder back, and the relay tells each of its viewers whether that is them.
+ * If the link drops, viewers stay connected while the relay reconnects and
+ * subscribes again; their streams resume at the origin's next GOP.
+ */
+@Component
+@ConditionalOnProperty(prefix = "vnc.cluster", name = "role", havingValue = "relay")
+public class RelayNode implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(RelayNode.class);
+
+    private static final long RECONNECT_DELAY_MS = 2000;
+    private static final int IDLE_FRAME_BUFFERS = 8;
+
+    private final ClusterProperties properties;
+    private final AppProperties appProperties;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+    private final String nodeId;
+    private final InetSocketAddress originAddress;
+    private final ConcurrentMap<String, RelayApp> apps = new ConcurrentHashMap<>();
+    private volatile List<AppRegistry.AppInfo> appInfos = List.of();
+    private volatile ClusterLink link; // null while disconnected
+    private volatile boolean running;
+    private Thread connector;
+
+    public RelayNode(ClusterProperties properties, AppProperties appProperties, ObjectMapper objectMapper,
+                     MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.appProperties = appProperties;
+        this.objectMapper = objectMapper;
+        this.meterRegistry = meterRegistry;
+        this.nodeId = properties.nodeId().isBlank()
+                ? "relay-" + Integer.toHexString(ThreadLocalRandom.current().nextInt())
+                : properties.nodeId();
+        String origin = properties.origin();
+        int colon = origin.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("vnc.cluster.origin must be host:port, not '" + origin + "'");
+        }
+        this.originAddress = InetSocketAddress.createUnresolved(origin.substring(0, colon),
+                Integer.parseInt(origin.substring(colon + 1)));
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        connector = Thread.ofPlatform().daemon().name("vnc-relay-link").start(this::connectLoop);
+        log.info("Relay '{}' started, origin {}", nodeId, properties.origin());
+    }
+
+    /** Holds the link to the origin, reconnecting after a delay whenever it drops. */
+    private void connectLoop() {
+        while (running) {
+            InetSocketAddress address = new InetSocketAddress(originAddress.getHostString(), originAddress.getPort());
+            try (ClusterLink l = ClusterLink.connect(address)) {
+                l.send(ClusterLink.HELLO, nodeId, properties.secret());
+                link = l;
+                log.info("Relay '{}' connected to origin {}", nodeId, address);
+                apps.values().forEach(RelayApp::resubscribe);
+                while (true) {
+                    handle(l.read());
+                }
+            } catch (IOException e) {
+                if (running) {
+                    log.warn("Link to origin {} down ({}); retrying in {} ms", address, e.getMessage(), RECONNECT_DELAY_MS);
+                }
+            } finally {
+                link = null;
+                apps.values().forEach(RelayApp::linkLost);
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void handle(ClusterLink.Message message) throws IOException {
+        RelayApp app = apps.get(message.app());
+        switch (message.type()) {
+            case ClusterLink.APPS -> updateApps(message.payload());
+            case ClusterLink.CONFIG -> {
+                if (app != null) app.rendition(message.key()).ifPresent(r -> r.onConfig(message.payload()));
+            }
+            case ClusterLink.FRAME -> {
+                if (app != null) app.rendition(message.key()).ifPresent(r -> r.onFrame(message.payload()));
+            }
+            case ClusterLink.LOCK -> {
+                if (app != null) app.onLock(message.key().isEmpty() ? null : message.key());
+            }
+            case ClusterLink.APP_CLOSED -> {
+                if (app == null) return;
+                if (message.key().isEmpty()) {
+                    closeApp(app);
+                } else {
+                    app.rendition(message.key()).ifPresent(RelayRendition::disconnectAll);
+                }
+            }
+            default -> log.warn("Unknown message type {} from the origin", message.type());
+        }
+    }
+
+    private void updateApps(ByteBuffer payload) throws IOException {
+        byte[] json = new byte[payload.remaining()];
+        payload.duplicate().get(json);
+        List<AppRegistry.AppInfo> infos = List.of(objectMapper.readValue(json, AppRegistry.AppInfo[].class));
+        appInfos = infos;
+        Set<String> ids = infos.stream().map(AppRegistry.AppInfo::id).collect(Collectors.toSet());
+        for (RelayApp app : apps.values()) {
+            if (!ids.contains(app.id)) closeApp(app);
+        }
+    }
+
+    private void closeApp(RelayApp app) {
+        if (apps.remove(app.id, app)) {
+            app.close();
+            log.info("App '{}' closed by the origin", app.id);
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        ClusterLink l = link;
+        if (l != null) l.close();
+        if (connector != null) connector.interrupt();
+        log.info("Relay '{}' stopped", nodeId);
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return 2;
+    }
+
+    /** The origin's apps, as it last reported them; empty until the link is up. */
+    public List<AppRegistry.AppInfo> listApps() {
+        return appInfos;
+    }
+
+    /**
+     * Joins a viewer to a rendition of one of the origin's apps; {@code null}
+     * or blank selects full resolution. Returns the viewer's cluster-wide id,
+     * or {@code null} if the origin has no such app or rendition.
+     */
+    public String join(String appId, String renditionName, WebSocketSession session, long rewindNanos) {
+        AppRegistry.AppInfo info = appInfos.stream().filter(a -> a.id().equals(appId)).findFirst().orElse(null);
+        if (info == null) return null;
+        String viewerId = nodeId + ":" + session.getId();
+        while (true) {
+            RelayApp app = apps.computeIfAbsent(appId, id -> new RelayApp(info));
+            Boolean joined = app.join(viewerId, renditionName, session, rewindNanos);
+            if (joined == null) continue; // Closed after the lookup; a fresh one replaces it.
+            return joined ? viewerId : null;
+        }
+    }
+
+    public void leave(String appId, String viewerId) {
+        RelayApp app = apps.get(appId);
+        if (app != null) app.leave(viewerId);
+        send(ClusterLink.VIEWER_LEFT, appId, viewerId, ByteBuffer.allocate(0));
+    }
+
+    /** Forwards a viewer's JSON control message to the origin. */
+    public void forwardControl(String appId, String viewerId, String text) {
+        send(ClusterLink.CONTROL_TEXT, appId, viewerId, ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /** Forwards a viewer's binary control message to the origin. */
+    public void forwardControl(String appId, String viewerId, ByteBuffer payload) {
+        send(ClusterLink.CONTROL_BINARY, appId, viewerId, payload);
+    }
+
+    public List<BroadcastService.ClientStats> getClientStats(String appId) {
+        RelayApp app = apps.get(appId);
+        if (app == null) return List.of();
+        List<BroadcastService.ClientStats> stats = new ArrayList<>();
+        app.renditions.values().forEach(r -> stats.addAll(r.broadcast.getClientStats()));
+        return stats;
+    }
+
+    /**
+     * Posts to the origin if the link is up; while it is down there is nothing
+     * to act on the message, and the reconnect resubscribes from the current
+     * viewers. Never blocks, since keyframe requests come from the link's own
+     * reader and control from viewers' threads. A full outbox closes the link
+     * rather than lose an unsubscribe, a departure or a lock request.
+     */
+    private void send(byte type, String app, String key, ByteBuffer payload) {
+        ClusterLink l = link;
+        if (l != null && !l.post(type, app, key, payload)) {
+            log.debug("Message to the origin not sent: the link is closed");
+        }
+    }
+
+    /** One of the origin's apps, while this relay has had viewers for it. */
+    private final class RelayApp {
+        final String id;
+        final PipelineMetrics metrics;
+        final Map<String, RelayRendition> renditions = new LinkedHashMap<>();
+        final LockStatusPublisher lockStatus;
+        final ConcurrentMap<String, RelayRendition> viewers = new ConcurrentHashMap<>();
+        volatile String controller;
+        private boolean closed; // guarded by this
+
+        RelayApp(AppRegistry.AppInfo info) {
+            this.id = info.id();
+            this.metrics = new PipelineMetrics(meterRegistry, id);
+            List<String> names = info.renditions();
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get(i);
+                renditions.put(name, new RelayRendition(id, name, AppInstance.gopCacheBytes(appProperties, i),
+                        metrics.forRendition(name)));
+            }
+            this.lockStatus = new LockStatusPublisher(() -> controller,
+                    renditions.values().stream().map(r -> r.broadcast).toList(), objectMapper);
+        }
+
+        Optional<RelayRendition> rendition(String name) {
+            return Optional.ofNullable(renditions.get(name));
+        }
+
+        /** True if joined, false for an unknown rendition, null if this app has been closed. */
+        synchronized Boolean join(String viewerId, String renditionName, WebSocketSession session, long rewindNanos) {
+            if (closed) return null;
+            RelayRendition rendition = renditionName == null || renditionName.isBlank()
+                    ? renditions.values().iterator().next()
+                    : renditions.get(renditionName);
+            if (rendition == null) return false;
+            viewers.put(viewerId, rendition);
+            rendition.addClient(viewerId, session, rewindNanos);
+            lockStatus.sendTo(viewerId);
+            return true;
+        }
+
+        synchronized void leave(String viewerId) {
+            RelayRendition rendition = viewers.remove(viewerId);
+            if (rendition != null) rendition.removeClient(viewerId);
+        }
+
+        void onLock(String controllerId) {
+            controller = controllerId;
+            lockStatus.publish();
+        }
+
+        void resubscribe() {
+            renditions.values().forEach(RelayRendition::resubscribe);
+        }
+
+        /** The origin released any lock this relay's viewers held. */
+        void linkLost() {
+            onLock(null);
+            renditions.values().forEach(RelayRendition::linkLost);
+        }
+
+        synchronized void close() {
+            closed = true;
+            renditions.values().forEach(RelayRendition::disconnectAll);
+            metrics.close();
+        }
+    }
+
+    /** One rendition's fan-out on this relay; subscribed at the origin while it has viewers. */
+    private final class RelayRendition {
+        final String appId;
+        final String name;
+        final BroadcastService broadcast;
+        final FrameBufferPool framePool = new FrameBufferPool(IDLE_FRAME_BUFFERS);
+
+        RelayRendition(String appId, String name, long gopCacheBytes, PipelineMetrics.RenditionMetrics metrics) {
+            this.appId = appId;
+            this.name = name;
+            this.broadcast = new BroadcastService(metrics, gopCacheBytes, appProperties.rewindWindow().toNanos());
+            broadcast.setKeyframeRequestListener(
+                    () -> send(ClusterLink.KEYFRAME_REQUEST, appId, name, ByteBuffer.allocate(0)));
+        }
+
+        synchronized void addClient(String viewerId, WebSocketSession session, long rewindNanos) {
+            boolean first = !broadcast.hasClients();
+            broadcast.addClient(viewerId, session, rewindNanos);
+            if (first) subscribe();
+        }
+
+        synchronized void removeClient(String viewerId) {
+            broadcast.removeClient(viewerId);
+            if (!broadcast.hasClients()) {
+                send(ClusterLink.UNSUBSCRIBE, appId, name, ByteBuffer.allocate(0));
+                broadcast.clearCachedFrames();
+            }
+        }
+
+        synchronized void resubscribe() {
+            if (broadcast.hasClients()) subscribe();
+        }
+
+        private void subscribe() {
+            send(ClusterLink.SUBSCRIBE, appId, name, ByteBuffer.allocate(0));
+        }
+
+        /** The origin starts the stream over, with its config and a GOP, when the link is back. */
+        void linkLost() {
+            broadcast.clearCachedFrames();
+        }
+
+        void disconnectAll() {
+            broadcast.disconnectAll();
+        }
+
+        /** {@code payload} is the origin's codec config message: the marker byte, then the avcC. */
+        void onConfig(ByteBuffer payload) {
+            byte[] avcC = new byte[payload.remaining() - 1];
+            payload.get(payload.position() + 1, avcC);
+            broadcast.broadcastCodecConfig(avcC);
+        }
+
+        /** {@code payload} is a frame message as viewers get it; frames arriving after the last viewer left are dropped. */
+        void onFrame(ByteBuffer payload) {
+            if (!broadcast.hasClients() || payload.remaining() < 1) return;
+            boolean keyframe = (payload.get(payload.position()) & 1) != 0;
+            FrameBufferPool.Frame frame = framePool.acquire(payload.remaining());
+            frame.buffer().put(payload.duplicate()).flip();
+            try {
+                broadcast.broadcastFrame(frame, keyframe, System.nanoTime());
+            } finally {
+                frame.release();
+            }
+        }
+    }
+}
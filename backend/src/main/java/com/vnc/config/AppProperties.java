@@ -0,0 +1,30 @@
+package com.vnc.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+/**
+ * App lifecycle settings ({@code vnc.apps.*}). Apps hibernate until their
+ * first viewer connects and are torn down again once they have had no
+ * viewers for {@code idleTimeout}. New apps are refused once the budgets
+ * of all apps, hibernated or not, plus theirs would exceed
+ * {@code maxUtilization} of the encode workers. {@code render} picks offscreen root panes, which need no
+ * display, or real windows for local debugging.
+ *
+ * <p>Renditions keep their recent GOPs so a joining viewer decodes at once.
+ * An app's caches hold at most {@code gopCacheMaxSize}, split between its
+ * renditions by picture area, and reach back {@code rewindWindow} for
+ * viewers that join with {@code ?rewind=}.
+ */
+@ConfigurationProperties(prefix = "vnc.apps")
+public record AppProperties(@DefaultValue("60s") Duration idleTimeout,
+                            @DefaultValue("0.8") double maxUtilization,
+                            @DefaultValue("offscreen") Render render,
+                            @DefaultValue("16MB") DataSize gopCacheMaxSize,
+                            @DefaultValue("10s") Duration rewindWindow) {
+
+    public enum Render { OFFSCREEN, WINDOW }
+}
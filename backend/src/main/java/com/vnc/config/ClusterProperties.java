@@ -0,0 +1,26 @@
+package com.vnc.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * Cluster settings ({@code vnc.cluster.*}). A {@code standalone} node encodes
+ * and serves its own viewers. An {@code origin} also listens on
+ * {@code bindAddress:port} for relay nodes and streams them each app it
+ * encodes over one connection per relay. A {@code relay} encodes nothing: it
+ * connects to {@code origin} ({@code host:port}), serves viewers from that
+ * stream and forwards their input and lock requests back. {@code nodeId}
+ * names a relay to the origin and must be unique per relay; blank picks a
+ * random one. When {@code secret} is set, the origin only accepts relays
+ * that present it.
+ */
+@ConfigurationProperties(prefix = "vnc.cluster")
+public record ClusterProperties(@DefaultValue("standalone") Role role,
+                                @DefaultValue("127.0.0.1") String bindAddress,
+                                @DefaultValue("9400") int port,
+                                @DefaultValue("localhost:9400") String origin,
+                                @DefaultValue("") String nodeId,
+                                @DefaultValue("") String secret) {
+
+    public enum Role { STANDALONE, ORIGIN, RELAY }
+}
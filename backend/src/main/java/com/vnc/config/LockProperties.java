@@ -0,0 +1,22 @@
+package com.vnc.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+/**
+ * Control lock settings ({@code vnc.lock.*}). The lock is a lease that lasts
+ * {@code leaseTtl} and is renewed three times per TTL while its node runs;
+ * if the node dies, the lock frees once the lease runs out. {@code memory}
+ * keeps each node's locks to itself. {@code file} keeps them as lease files
+ * in {@code directory}, so nodes sharing the directory share the locks of
+ * apps with the same id.
+ */
+@ConfigurationProperties(prefix = "vnc.lock")
+public record LockProperties(@DefaultValue("memory") Store store,
+                             @DefaultValue("locks") String directory,
+                             @DefaultValue("10s") Duration leaseTtl) {
+
+    public enum Store { MEMORY, FILE }
+}
@@ -0,0 +1,22 @@
+package com.vnc.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+/**
+ * Stream recording settings ({@code vnc.recording.*}). When enabled, each
+ * app's full-resolution stream is written as fragmented MP4 segments under
+ * {@code directory/<app id>/}. A segment is closed at the first keyframe once
+ * it reaches {@code segmentMaxSize} or {@code segmentMaxDuration}.
+ * {@code queueCapacity} bounds the frames waiting for the writer; beyond it
+ * frames are dropped rather than slowing the encoder.
+ */
+@ConfigurationProperties(prefix = "vnc.recording")
+public record RecordingProperties(@DefaultValue("false") boolean enabled,
+                                  @DefaultValue("recordings") String directory,
+                                  @DefaultValue("256MB") DataSize segmentMaxSize,
+                                  @DefaultValue("10m") Duration segmentMaxDuration,
+                                  @DefaultValue("120") int queueCapacity) {}
@@ -1,21 +1,26 @@
 package com.vnc.config;
 
+import com.vnc.websocket.RelayWebSocketHandler;
 import com.vnc.websocket.VncWebSocketHandler;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.web.socket.WebSocketHandler;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
 import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
 
+import java.util.Optional;
+
 @Configuration
 @EnableWebSocket
 public class WebSocketConfig implements WebSocketConfigurer {
 
-    private final VncWebSocketHandler handler;
+    private final WebSocketHandler handler;
 
-    public WebSocketConfig(VncWebSocketHandler handler) {
-        this.handler = handler;
+    /** A relay serves its viewers from the origin's streams instead of local apps. */
+    public WebSocketConfig(VncWebSocketHandler handler, Optional<RelayWebSocketHandler> relayHandler) {
+        this.handler = relayHandler.isPresent() ? relayHandler.get() : handler;
     }
 
     @Override
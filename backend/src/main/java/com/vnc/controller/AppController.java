@@ -1,24 +1,97 @@
 package com.vnc.controller;
 
+import com.vnc.cluster.RelayNode;
+import com.vnc.model.AppSpec;
+import com.vnc.service.AppInstance;
 import com.vnc.service.AppRegistry;
+import com.vnc.service.BroadcastService;
+import com.vnc.service.FramePipeline;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.net.URI;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
+/**
+ * On a relay node, apps are listed as the origin reports them and are
+ * created and deleted on the origin only.
+ */
 @RestController
 @RequestMapping("/api")
 public class AppController {
 
     private final AppRegistry appRegistry;
+    private final Optional<RelayNode> relay;
 
-    public AppController(AppRegistry appRegistry) {
+    public AppController(AppRegistry appRegistry, Optional<RelayNode> relay) {
         this.appRegistry = appRegistry;
+        this.relay = relay;
     }
 
     @GetMapping("/apps")
     public List<AppRegistry.AppInfo> listApps() {
-        return appRegistry.listApps();
+        return relay.map(RelayNode::listApps).orElseGet(appRegistry::listApps);
+    }
+
+    /** 201 with the new app, 400 for an invalid spec, 503 when the node is at capacity, 409 on a relay. */
+    @PostMapping("/apps")
+    public ResponseEntity<?> createApp(@RequestBody AppSpec spec) {
+        if (relay.isPresent()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("error", "Apps are managed on the origin"));
+        }
+        try {
+            AppInstance app = appRegistry.create(spec);
+            return ResponseEntity.created(URI.create("/api/apps/" + app.getId()))
+                    .body(AppRegistry.toInfo(app));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(Map.of("error", e.getMessage()));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(Map.of("error", e.getMessage()));
+        }
+    }
+
+    @DeleteMapping("/apps/{id}")
+    public ResponseEntity<Void> deleteApp(@PathVariable("id") String id) {
+        if (relay.isPresent()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+        return appRegistry.delete(id)
+                ? ResponseEntity.noContent().build()
+                : ResponseEntity.notFound().build();
+    }
+
+    @GetMapping("/capacity")
+    public AppRegistry.Capacity capacity() {
+        return appRegistry.getCapacity();
+    }
+
+    @GetMapping("/apps/{id}/stats")
+    public ResponseEntity<FramePipeline.Stats> pipelineStats(@PathVariable("id") String id) {
+        AppInstance app = appRegistry.get(id);
+        if (app == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(app.getPipelineStats());
+    }
+
+    @GetMapping("/apps/{id}/clients")
+    public ResponseEntity<List<BroadcastService.ClientStats>> clientStats(@PathVariable("id") String id) {
+        if (relay.isPresent()) {
+            return ResponseEntity.ok(relay.get().getClientStats(id));
+        }
+        AppInstance app = appRegistry.get(id);
+        if (app == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(app.getClientStats());
     }
 }
@@ -0,0 +1,57 @@
+package com.vnc.model;
+
+import java.util.Set;
+
+/**
+ * What to run for one app: display name, capture resolution and rate, x264
+ * preset, and the CPU budget in cores that its capture and encode work may
+ * use. Fields left out of a request (zero or null) take the defaults.
+ */
+public record AppSpec(String name, int width, int height, int fps, String preset, double cpuBudget) {
+
+    public static final int DEFAULT_WIDTH = 1280;
+    public static final int DEFAULT_HEIGHT = 720;
+    public static final int DEFAULT_FPS = 20;
+    public static final String DEFAULT_PRESET = "ultrafast";
+    public static final double DEFAULT_CPU_BUDGET = 0.5;
+
+    private static final Set<String> X264_PRESETS = Set.of(
+            "ultrafast", "superfast", "veryfast", "faster", "fast",
+            "medium", "slow", "slower", "veryslow");
+
+    public AppSpec {
+        if (width == 0) width = DEFAULT_WIDTH;
+        if (height == 0) height = DEFAULT_HEIGHT;
+        if (fps == 0) fps = DEFAULT_FPS;
+        if (preset == null || preset.isBlank()) preset = DEFAULT_PRESET;
+        if (cpuBudget == 0) cpuBudget = DEFAULT_CPU_BUDGET;
+    }
+
+    public static AppSpec named(String name) {
+        return new AppSpec(name, 0, 0, 0, null, 0);
+    }
+
+    /** Throws {@link IllegalArgumentException} naming the first invalid field. */
+    public AppSpec validate() {
+        if (name == null || name.isBlank()) {
+            throw new IllegalArgumentException("name is required");
+        }
+        // 4:2:0 needs even dimensions; smaller renditions round down to even.
+        if (width < 320 || width > 3840 || width % 2 != 0) {
+            throw new IllegalArgumentException("width must be even and in 320..3840");
+        }
+        if (height < 180 || height > 2160 || height % 2 != 0) {
+            throw new IllegalArgumentException("height must be even and in 180..2160");
+        }
+        if (fps < 1 || fps > 60) {
+            throw new IllegalArgumentException("fps must be in 1..60");
+        }
+        if (!X264_PRESETS.contains(preset)) {
+            throw new IllegalArgumentException("preset must be one of " + X264_PRESETS);
+        }
+        if (cpuBudget <= 0 || cpuBudget > 64) {
+            throw new IllegalArgumentException("cpuBudget must be in (0, 64] cores");
+        }
+        return this;
+    }
+}
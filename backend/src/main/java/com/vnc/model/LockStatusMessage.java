@@ -1,8 +1,20 @@
 package com.vnc.model;
 
+/**
+ * Who holds an app's control lock, as seen by one viewer. Sent as JSON, or
+ * as {@link #toBinary()} to viewers that use the binary control protocol.
+ */
 public record LockStatusMessage(String type, boolean locked, boolean you) {
 
+    /** First byte of the binary form; video frames and codec config never start with it. */
+    public static final byte BINARY_MARKER = (byte) 0xFE;
+
     public static LockStatusMessage of(boolean locked, boolean isController) {
         return new LockStatusMessage("lockStatus", locked, isController);
     }
+
+    /** {@code 0xFE flags}: bit 0 is {@code locked}, bit 1 is {@code you}. */
+    public byte[] toBinary() {
+        return new byte[] {BINARY_MARKER, (byte) ((locked ? 1 : 0) | (you ? 2 : 0))};
+    }
 }
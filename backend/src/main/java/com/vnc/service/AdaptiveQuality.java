@@ -0,0 +1,44 @@
+package com.vnc.service;
+
+/**
+ * Closes the loop between viewer backpressure and the encoder: steps the
+ * encoder down its quality ladder while most viewers are congested, and back
+ * up one level at a time after they have stayed clear for a while. Called from
+ * the app's encode stage only.
+ */
+public class AdaptiveQuality {
+
+    private static final long EVALUATE_INTERVAL_MS = 1000;
+    private static final double STEP_DOWN_FRACTION = 0.5;
+    private static final int STEP_UP_AFTER_CLEAN = 5;
+
+    private final H264EncoderService encoder;
+    private final BroadcastService broadcastService;
+
+    private long lastEvaluation;
+    private int cleanEvaluations;
+
+    public AdaptiveQuality(H264EncoderService encoder, BroadcastService broadcastService) {
+        this.encoder = encoder;
+        this.broadcastService = broadcastService;
+    }
+
+    public void onFrameEncoded(long nowMs) {
+        if (nowMs - lastEvaluation < EVALUATE_INTERVAL_MS) return;
+        lastEvaluation = nowMs;
+
+        double congested = broadcastService.getCongestedFraction();
+        int level = encoder.getQualityLevel();
+        if (congested > STEP_DOWN_FRACTION) {
+            cleanEvaluations = 0;
+            encoder.setQualityLevel(level + 1);
+        } else if (congested == 0) {
+            if (++cleanEvaluations >= STEP_UP_AFTER_CLEAN && level > 0) {
+                cleanEvaluations = 0;
+                encoder.setQualityLevel(level - 1);
+            }
+        } else {
+            cleanEvaluations = 0;
+        }
+    }
+}
@@ -1,119 +1,318 @@
 package com.vnc.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.vnc.config.AppProperties;
+import com.vnc.config.LockProperties;
+import com.vnc.config.RecordingProperties;
+import com.vnc.model.AppSpec;
 import com.vnc.swing.SwingApp;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.WebSocketSession;
 
-import javax.swing.*;
-import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * One app and its per-app services. An app hibernates, holding no Swing
+ * frame, capture buffers or native memory, until its first viewer connects.
+ * {@link AppRegistry} hibernates it again after an idle timeout without
+ * viewers.
+ *
+ * <p>Its {@link AppSpec} fixes the resolution, frame rate, x264 preset and
+ * CPU budget. The budget is a soft cap: when the measured capture and encode
+ * time exceeds it, the capture interval is stretched (down to a quarter of
+ * the frame rate) until the app fits again.
+ */
 public class AppInstance {
 
     private static final Logger log = LoggerFactory.getLogger(AppInstance.class);
 
-    private static final int WIDTH = 1280;
-    private static final int HEIGHT = 720;
-    private static final int FPS = 20;
-    private static final long CAPTURE_INTERVAL_MS = 1000 / FPS;
+    /** Full resolution, then halves for thumbnails and small screens. */
+    private static final int[] RENDITION_DIVISORS = {1, 2, 4};
+    /** Sum of the renditions' areas relative to full resolution; each gets its area's share of the GOP cache budget. */
+    private static final double RENDITION_AREA_TOTAL =
+            Arrays.stream(RENDITION_DIVISORS).mapToDouble(d -> 1.0 / (d * d)).sum();
+    /** Weight of the newest sample in the smoothed load. */
+    private static final double LOAD_SMOOTHING = 0.3;
+    private static final double MAX_THROTTLE = 4.0;
 
     private final String id;
-    private final String name;
+    private final AppSpec spec;
+    private final long captureIntervalNanos;
     private final SwingApp swingApp;
-    private final H264EncoderService encoder;
-    private final BroadcastService broadcastService;
+    private final FrameScaler scaler;
+    private final List<Rendition> renditions = new ArrayList<>();
+    private final ConcurrentMap<String, Rendition> clientRenditions = new ConcurrentHashMap<>();
     private final ControlLockService controlLockService;
+    private final LockStatusPublisher lockStatusPublisher;
     private final RemoteControlService remoteControlService;
-    private final AtomicBoolean capturing = new AtomicBoolean(false);
+    private final FramePipeline pipeline;
+    private final EncodeScheduler scheduler;
+    private final PipelineMetrics metrics;
+    private final StreamRecorder recorder;
+    private final RecordingCatalog recordingCatalog;
+    private final PipelineMetrics.RenditionMetrics replayMetrics; // shared by every replay session
+    private final ConcurrentMap<String, ReplaySession> replays = new ConcurrentHashMap<>();
 
-    private ScheduledExecutorService scheduler;
-    private BufferedImage captureBuffer;
+    private final Object lifecycleLock = new Object();
+    private boolean running;       // guarded by lifecycleLock
+    private long idleSinceMillis;  // guarded by lifecycleLock
+    private boolean disposed;      // guarded by lifecycleLock
+    private long lastBusyNanos;    // guarded by lifecycleLock
+    private long lastSampleNanos;  // guarded by lifecycleLock
+    private double throttle = 1.0; // guarded by lifecycleLock
+    private volatile double loadCores;
 
-    public AppInstance(String id, String name, ObjectMapper objectMapper) {
+    public AppInstance(String id, AppSpec spec, ObjectMapper objectMapper, EncodeScheduler scheduler,
+                       MeterRegistry meterRegistry, AppProperties apps, RecordingProperties recording,
+                       LockStore lockStore, LockProperties locks) {
         this.id = id;
-        this.name = name;
-        this.swingApp = new SwingApp(name);
-        this.encoder = new H264EncoderService();
-        this.broadcastService = new BroadcastService(objectMapper);
-        this.controlLockService = new ControlLockService();
-        this.remoteControlService = new RemoteControlService(swingApp);
+        this.spec = spec;
+        this.metrics = new PipelineMetrics(meterRegistry, id);
+        this.captureIntervalNanos = TimeUnit.SECONDS.toNanos(1) / spec.fps();
+        this.swingApp = new SwingApp(spec.name(), spec.width(), spec.height(),
+                apps.render() == AppProperties.Render.OFFSCREEN);
+        this.scaler = new FrameScaler(spec.width(), spec.height(), metrics);
+        for (int divisor : RENDITION_DIVISORS) {
+            // x264 needs even dimensions for 4:2:0.
+            int w = (spec.width() / divisor) & ~1;
+            int h = (spec.height() / divisor) & ~1;
+            if (divisor > 1 && h < 90) break;
+            String renditionName = h + "p";
+            renditions.add(new Rendition(renditionName, w, h, spec.fps(), spec.preset(),
+                    gopCacheBytes(apps, renditions.size()), apps.rewindWindow().toNanos(),
+                    metrics.forRendition(renditionName)));
+        }
+        this.recordingCatalog = new RecordingCatalog(StreamRecorder.recordingDirectory(recording, id));
+        this.replayMetrics = metrics.forRendition("replay");
+        if (recording.enabled()) {
+            // Only the full resolution is kept; the smaller renditions are derived from the same picture.
+            this.recorder = new StreamRecorder(id, recording, recordingCatalog, metrics.forRecording());
+            renditions.get(0).setRecorder(recorder);
+        } else {
+            this.recorder = null;
+        }
+        this.controlLockService = new ControlLockService(id, lockStore, locks.leaseTtl().toMillis());
+        this.lockStatusPublisher = new LockStatusPublisher(controlLockService::getController,
+                renditions.stream().map(Rendition::getBroadcastService).toList(), objectMapper);
+        this.remoteControlService = new RemoteControlService(swingApp, controlLockService, metrics);
+        this.pipeline = new FramePipeline(id, swingApp, scaler, List.copyOf(renditions), metrics,
+                spec.width(), spec.height());
+        this.scheduler = scheduler;
+    }
+
+    /** The GOP cache budget of an app's {@code index}th rendition: its area's share of the app's. */
+    public static long gopCacheBytes(AppProperties apps, int index) {
+        int divisor = RENDITION_DIVISORS[index];
+        return (long) (apps.gopCacheMaxSize().toBytes() / (divisor * divisor) / RENDITION_AREA_TOTAL);
     }
 
+    /** Starts the app if it is hibernating. */
     public void start() {
-        swingApp.start();
+        synchronized (lifecycleLock) {
+            if (running || disposed) return;
+            long t0 = System.nanoTime();
+            swingApp.start();
+            scaler.start();
+            pipeline.start(scheduler, captureIntervalNanos);
+            throttle = 1.0;
+            running = true;
+            log.info("App '{}' (id={}) started in {} ms – {}x{} @ {} FPS, preset {}, renditions {}",
+                    spec.name(), id, (System.nanoTime() - t0) / 1_000_000,
+                    spec.width(), spec.height(), spec.fps(), spec.preset(), getRenditionNames());
+        }
+    }
+
+    /** Tears the app down, freeing its Swing frame, buffers and native memory. */
+    public void stop() {
+        synchronized (lifecycleLock) {
+            if (!running) return;
+            pipeline.stop();
+            renditions.forEach(Rendition::stop);
+            scaler.stop();
+            swingApp.stop();
+            running = false;
+            log.info("App '{}' (id={}) stopped", spec.name(), id);
+        }
+    }
+
+    /** Stops the app, finishes its recording and gives up its lock lease, on server shutdown. */
+    public void shutdown() {
+        synchronized (lifecycleLock) {
+            stop();
+            if (recorder != null) {
+                recorder.close();
+            }
+            controlLockService.close();
+        }
+    }
+
+    /**
+     * Disconnects every viewer and stops the app for good; later
+     * {@link #addClient} calls are refused.
+     */
+    public void dispose() {
+        synchronized (lifecycleLock) {
+            disposed = true;
+            renditions.forEach(Rendition::disconnectAll);
+            replays.values().forEach(ReplaySession::disconnect);
+            shutdown();
+            metrics.close();
+        }
+    }
 
-        captureBuffer = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
-        encoder.start(WIDTH, HEIGHT, FPS);
+    /**
+     * Folds the worker time used since the last call into the smoothed load
+     * and re-derives the capture interval from it. Called about once a second.
+     */
+    public void sampleLoad(long nowNanos) {
+        synchronized (lifecycleLock) {
+            long busy = pipeline.getBusyNanos();
+            if (lastSampleNanos != 0 && nowNanos > lastSampleNanos) {
+                double cores = (double) (busy - lastBusyNanos) / (nowNanos - lastSampleNanos);
+                loadCores += LOAD_SMOOTHING * (cores - loadCores);
+            }
+            lastBusyNanos = busy;
+            lastSampleNanos = nowNanos;
+            if (!running) return;
 
-        byte[] config = encoder.getCodecConfig();
-        if (config != null) {
-            broadcastService.setCodecConfig(config);
+            // At the budget the throttle holds; above or below it, it scales with the overshoot.
+            double next = Math.clamp(throttle * loadCores / spec.cpuBudget(), 1.0, MAX_THROTTLE);
+            if (Math.abs(next - throttle) > 0.05) {
+                throttle = next;
+                pipeline.setIntervalNanos((long) (captureIntervalNanos * throttle));
+                log.debug("App '{}' throttled to {}x interval at {} cores", id, throttle, loadCores);
+            }
         }
+    }
 
-        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
-            Thread t = new Thread(r, "vnc-capture-" + id);
-            t.setDaemon(true);
-            return t;
-        });
-        scheduler.scheduleAtFixedRate(
-                this::captureAndBroadcast, 200, CAPTURE_INTERVAL_MS, TimeUnit.MILLISECONDS);
-        log.info("App '{}' (id={}) started – {}ms capture interval", name, id, CAPTURE_INTERVAL_MS);
+    /** Smoothed worker time this app uses, in cores. */
+    public double getLoadCores() {
+        return loadCores;
     }
 
-    public void stop() {
-        if (scheduler != null) {
-            scheduler.shutdown();
-            try {
-                if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
-                    scheduler.shutdownNow();
-                }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                scheduler.shutdownNow();
+    /** Stops the app if it has had no viewers for {@code idleTimeoutMillis}; returns true if it did. */
+    public boolean hibernateIfIdle(long nowMillis, long idleTimeoutMillis) {
+        synchronized (lifecycleLock) {
+            if (!running || !clientRenditions.isEmpty() || nowMillis - idleSinceMillis < idleTimeoutMillis) {
+                return false;
+            }
+            stop();
+            return true;
+        }
+    }
+
+    public boolean isRunning() {
+        synchronized (lifecycleLock) {
+            return running;
+        }
+    }
+
+    /** Looks up a rendition by name; {@code null} or blank selects full resolution. */
+    public Rendition getRendition(String renditionName) {
+        if (renditionName == null || renditionName.isBlank()) return renditions.get(0);
+        for (Rendition r : renditions) {
+            if (r.getName().equals(renditionName)) return r;
+        }
+        return null;
+    }
+
+    public List<String> getRenditionNames() {
+        return renditions.stream().map(Rendition::getName).toList();
+    }
+
+    /**
+     * Registers a viewer, starting the app first if it is hibernating. The
+     * first capture after a start repaints the whole frame and the new
+     * encoder opens with an IDR, so the viewer gets a picture on the first tick.
+     * The viewer's burst starts {@code rewindNanos} back if that much is
+     * cached. Returns false if the app has been deleted.
+     */
+    public boolean addClient(String sessionId, WebSocketSession session, Rendition rendition, long rewindNanos) {
+        synchronized (lifecycleLock) {
+            if (disposed) return false;
+            start();
+            clientRenditions.put(sessionId, rendition);
+            rendition.addClient(sessionId, session, rewindNanos);
+        }
+        pipeline.wake();
+        return true;
+    }
+
+    /**
+     * Starts playing this app's recording to a viewer from {@code epochMs}.
+     * Replay reads only finished segments from disk, so it neither starts
+     * the app nor counts as a viewer. Returns null if the app has been deleted.
+     */
+    public ReplaySession openReplay(String sessionId, WebSocketSession session, long epochMs) {
+        synchronized (lifecycleLock) {
+            if (disposed) return null;
+            ReplaySession replay = new ReplaySession(sessionId, session, recordingCatalog,
+                    replayMetrics, epochMs);
+            replays.put(sessionId, replay);
+            return replay;
+        }
+    }
+
+    public void closeReplay(String sessionId) {
+        ReplaySession replay = replays.remove(sessionId);
+        if (replay != null) {
+            replay.close();
+        }
+    }
+
+    public void removeClient(String sessionId) {
+        synchronized (lifecycleLock) {
+            Rendition rendition = clientRenditions.remove(sessionId);
+            if (rendition != null) {
+                rendition.removeClient(sessionId);
+            }
+            if (clientRenditions.isEmpty()) {
+                idleSinceMillis = System.currentTimeMillis();
             }
         }
-        encoder.stop();
-        swingApp.stop();
-        log.info("App '{}' (id={}) stopped", name, id);
     }
 
-    private void captureAndBroadcast() {
-        if (!capturing.compareAndSet(false, true)) return;
-        try {
-            if (!broadcastService.hasClients()) return;
+    public Set<String> getClientIds() {
+        return Set.copyOf(clientRenditions.keySet());
+    }
 
-            JFrame frame = swingApp.getFrame();
-            if (frame == null || !frame.isVisible()) return;
+    /** Renews this node's lock lease or reloads another node's, and tells viewers if the holder changed. */
+    public void heartbeatLock() {
+        if (controlLockService.heartbeat()) {
+            publishLockStatus();
+        }
+    }
 
-            SwingUtilities.invokeAndWait(() -> {
-                Graphics2D g = captureBuffer.createGraphics();
-                frame.getContentPane().paint(g);
-                g.dispose();
-            });
+    /** Sends every viewer the current lock status; call after the lock changes. */
+    public void publishLockStatus() {
+        lockStatusPublisher.publish();
+    }
 
-            byte[] encoded = encoder.encode(captureBuffer);
-            if (encoded == null) return;
+    /** Sends one viewer the current lock status. */
+    public void sendLockStatusTo(String sessionId) {
+        lockStatusPublisher.sendTo(sessionId);
+    }
 
-            boolean keyframe = encoder.isLastFrameKeyframe();
-            long timestamp = encoder.getTimestamp();
-            broadcastService.broadcastFrame(encoded, keyframe, timestamp);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        } catch (Exception e) {
-            log.error("Capture error for app {}", id, e);
-        } finally {
-            capturing.set(false);
+    public List<BroadcastService.ClientStats> getClientStats() {
+        List<BroadcastService.ClientStats> stats = new ArrayList<>();
+        for (Rendition r : renditions) {
+            stats.addAll(r.getBroadcastService().getClientStats());
         }
+        return stats;
     }
 
     public String getId() { return id; }
-    public String getName() { return name; }
-    public BroadcastService getBroadcastService() { return broadcastService; }
+    public String getName() { return spec.name(); }
+    public AppSpec getSpec() { return spec; }
     public ControlLockService getControlLockService() { return controlLockService; }
     public RemoteControlService getRemoteControlService() { return remoteControlService; }
+    public FramePipeline.Stats getPipelineStats() { return pipeline.getStats(); }
 }
@@ -1,46 +1,207 @@
 package com.vnc.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.vnc.config.AppProperties;
+import com.vnc.config.ClusterProperties;
+import com.vnc.config.LockProperties;
+import com.vnc.config.RecordingProperties;
+import com.vnc.model.AppSpec;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.SmartLifecycle;
 import org.springframework.stereotype.Service;
 
-import java.util.LinkedHashMap;
+import java.nio.file.Path;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Creates, looks up and deletes apps at runtime. Ids are assigned by the
+ * server. Admission is checked against committed cores: every app commits
+ * its CPU budget, or its measured load when that is higher, even while
+ * hibernated, so a hibernated app can always wake within its budget.
+ */
 @Service
 public class AppRegistry implements SmartLifecycle {
 
     private static final Logger log = LoggerFactory.getLogger(AppRegistry.class);
 
+    private static final long IDLE_CHECK_INTERVAL_MS = 1000;
+
     private final ObjectMapper objectMapper;
-    private final Map<String, AppInstance> instances = new LinkedHashMap<>();
+    private final AppProperties properties;
+    private final RecordingProperties recordingProperties;
+    private final ClusterProperties clusterProperties;
+    private final LockProperties lockProperties;
+    private final LockStore lockStore;
+    private final MeterRegistry meterRegistry;
+    private final ConcurrentMap<String, AppInstance> instances = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final Object admissionLock = new Object();
+    private final EncodeScheduler encodeScheduler = new EncodeScheduler();
+    private ScheduledExecutorService idleReaper;
     private volatile boolean running;
 
-    public AppRegistry(ObjectMapper objectMapper) {
+    public AppRegistry(ObjectMapper objectMapper, AppProperties properties, RecordingProperties recordingProperties,
+                       ClusterProperties clusterProperties, LockProperties lockProperties,
+                       MeterRegistry meterRegistry) {
         this.objectMapper = objectMapper;
+        this.properties = properties;
+        this.recordingProperties = recordingProperties;
+        this.clusterProperties = clusterProperties;
+        this.lockProperties = lockProperties;
+        this.lockStore = switch (lockProperties.store()) {
+            case MEMORY -> new InMemoryLockStore();
+            case FILE -> new FileLockStore(Path.of(lockProperties.directory()));
+        };
+        this.meterRegistry = meterRegistry;
+        if (properties.render() == AppProperties.Render.WINDOW) {
+            // Nothing has touched AWT yet: apps build their UI on first start.
+            System.setProperty("java.awt.headless", "false");
+        }
     }
 
+    /**
+     * Registers the default apps hibernated; each starts with its first
+     * viewer. A relay runs no apps of its own: they all live on the origin.
+     */
     @Override
     public void start() {
-        createApp("1", "Bouncing Balls");
-        createApp("2", "Bouncing Balls 2");
-        createApp("3", "Bouncing Balls 3");
+        encodeScheduler.start();
+
+        if (clusterProperties.role() != ClusterProperties.Role.RELAY) {
+            // Registered even past capacity, so a small node still serves its defaults; they count as committed.
+            for (String name : List.of("Bouncing Balls", "Bouncing Balls 2", "Bouncing Balls 3")) {
+                register(AppSpec.named(name));
+            }
+            if (committedCores() > capacityCores()) {
+                log.warn("Default apps commit {} cores, over the capacity of {}; new apps will be refused",
+                        committedCores(), capacityCores());
+            }
+        }
 
-        instances.values().forEach(AppInstance::start);
+        idleReaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "vnc-app-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        idleReaper.scheduleWithFixedDelay(this::tick,
+                IDLE_CHECK_INTERVAL_MS, IDLE_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        // Three renewals per TTL, so one slow or failed renewal does not lose the lease.
+        long heartbeatMillis = Math.max(1, lockProperties.leaseTtl().toMillis() / 3);
+        idleReaper.scheduleWithFixedDelay(this::heartbeatLocks,
+                heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
         running = true;
-        log.info("AppRegistry started – {} apps", instances.size());
+        log.info("AppRegistry started – {} apps, {} rendering, idle timeout {}, capacity {} cores, cluster role {}, "
+                        + "{} lock store with {} leases",
+                instances.size(), properties.render(), properties.idleTimeout(), capacityCores(),
+                clusterProperties.role(), lockProperties.store(), lockProperties.leaseTtl());
+    }
+
+    /** Samples every app's load, then hibernates the ones idle for too long. */
+    private void tick() {
+        long nowNanos = System.nanoTime();
+        long now = System.currentTimeMillis();
+        long timeout = properties.idleTimeout().toMillis();
+        for (AppInstance app : instances.values()) {
+            try {
+                app.sampleLoad(nowNanos);
+                if (app.hibernateIfIdle(now, timeout)) {
+                    log.info("App '{}' hibernated after {} without viewers", app.getId(), properties.idleTimeout());
+                }
+            } catch (Exception e) {
+                log.error("Failed to hibernate app {}", app.getId(), e);
+            }
+        }
+    }
+
+    private void heartbeatLocks() {
+        for (AppInstance app : instances.values()) {
+            try {
+                app.heartbeatLock();
+            } catch (Exception e) {
+                log.error("Failed to renew the lock of app {}", app.getId(), e);
+            }
+        }
+    }
+
+    /**
+     * Creates an app, hibernated. Throws {@link IllegalArgumentException} for
+     * an invalid spec and {@link IllegalStateException} if the node has no
+     * room for the app's CPU budget.
+     */
+    public AppInstance create(AppSpec spec) {
+        spec.validate();
+        synchronized (admissionLock) {
+            double committed = committedCores();
+            double capacity = capacityCores();
+            if (committed + spec.cpuBudget() > capacity) {
+                throw new IllegalStateException(String.format(
+                        "No capacity for %.2f cores: %.2f of %.2f committed", spec.cpuBudget(), committed, capacity));
+            }
+            return register(spec);
+        }
+    }
+
+    private AppInstance register(AppSpec spec) {
+        synchronized (admissionLock) {
+            String id = Integer.toString(nextId.getAndIncrement());
+            AppInstance app = new AppInstance(id, spec, objectMapper, encodeScheduler, meterRegistry,
+                    properties, recordingProperties, lockStore, lockProperties);
+            instances.put(id, app);
+            log.info("App '{}' (id={}) created – {}", spec.name(), id, spec);
+            return app;
+        }
+    }
+
+    /** Disconnects the app's viewers and frees it; returns false if there is no such app. */
+    public boolean delete(String id) {
+        AppInstance app = instances.remove(id);
+        if (app == null) return false;
+        app.dispose();
+        log.info("App '{}' (id={}) deleted", app.getName(), id);
+        return true;
     }
 
-    private void createApp(String id, String name) {
-        instances.put(id, new AppInstance(id, name, objectMapper));
+    private double measuredLoadCores() {
+        double load = 0;
+        for (AppInstance app : instances.values()) {
+            load += app.getLoadCores();
+        }
+        return load;
+    }
+
+    /**
+     * Cores held for admitted apps: each app's budget, whether it runs or
+     * hibernates, so a hibernated app can always wake within its budget. An
+     * app measured above its budget counts at its measured load.
+     */
+    private double committedCores() {
+        double committed = 0;
+        for (AppInstance app : instances.values()) {
+            committed += Math.max(app.getSpec().cpuBudget(), app.getLoadCores());
+        }
+        return committed;
+    }
+
+    private double capacityCores() {
+        return encodeScheduler.getWorkerCount() * properties.maxUtilization();
     }
 
     @Override
     public void stop() {
-        instances.values().forEach(AppInstance::stop);
+        if (idleReaper != null) {
+            idleReaper.shutdownNow();
+        }
+        instances.values().forEach(AppInstance::shutdown);
+        encodeScheduler.stop();
         running = false;
         log.info("AppRegistry stopped");
     }
@@ -59,11 +220,39 @@ public class AppRegistry implements SmartLifecycle {
         return instances.get(id);
     }
 
+    public EncodeScheduler.Stats getSchedulerStats() {
+        return encodeScheduler.getStats();
+    }
+
+    public Capacity getCapacity() {
+        return new Capacity(encodeScheduler.getWorkerCount(), capacityCores(), committedCores(),
+                measuredLoadCores(), instances.size());
+    }
+
     public List<AppInfo> listApps() {
         return instances.values().stream()
-                .map(a -> new AppInfo(a.getId(), a.getName()))
+                .sorted(Comparator.comparingInt(a -> Integer.parseInt(a.getId())))
+                .map(AppRegistry::toInfo)
                 .toList();
     }
 
-    public record AppInfo(String id, String name) {}
+    public static AppInfo toInfo(AppInstance app) {
+        AppSpec spec = app.getSpec();
+        return new AppInfo(app.getId(), spec.name(), spec.width(), spec.height(), spec.fps(),
+                spec.preset(), spec.cpuBudget(), app.getLoadCores(), app.getRenditionNames(), app.isRunning());
+    }
+
+    /**
+     * {@code loadCores} is the app's smoothed measured worker time; {@code running}
+     * is false while the app hibernates without viewers.
+     */
+    public record AppInfo(String id, String name, int width, int height, int fps, String preset,
+                          double cpuBudget, double loadCores, List<String> renditions, boolean running) {}
+
+    /**
+     * Admission state: new apps fit while {@code committedCores} plus their
+     * budget stays within {@code capacityCores}. {@code loadCores} is what the
+     * apps measure now, hibernated ones at zero.
+     */
+    public record Capacity(int workers, double capacityCores, double committedCores, double loadCores, int apps) {}
 }
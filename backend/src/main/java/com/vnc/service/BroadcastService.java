@@ -1,37 +1,63 @@
 package com.vnc.service;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.socket.BinaryMessage;
-import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BroadcastService {
 
+    /**
+     * Session attribute set to {@code true} for viewers that use the binary
+     * control protocol; they get their lock status in binary.
+     */
+    public static final String BINARY_CONTROL_ATTRIBUTE = "vnc.binaryControl";
+
     private static final Logger log = LoggerFactory.getLogger(BroadcastService.class);
 
     private static final byte CONFIG_MARKER = (byte) 0xFF;
 
+    /** Weight of the newest sample in the per-client drop-rate and latency averages. */
+    private static final double EWMA_ALPHA = 0.1;
+    private static final double CONGESTED_DROP_RATE = 0.2;
+    private static final double CONGESTED_LATENCY_MS = 150;
+    /** Frames a client may have queued for sending, 200 ms at 20 FPS. */
+    private static final int CLIENT_QUEUE_CAPACITY = 4;
+
     private final ConcurrentMap<String, ClientSession> clients = new ConcurrentHashMap<>();
-    private final ObjectMapper objectMapper;
+    private final PipelineMetrics.RenditionMetrics metrics;
     private final ExecutorService sendExecutor = Executors.newVirtualThreadPerTaskExecutor();
 
-    private volatile BinaryMessage cachedCodecConfig;
-    private volatile BinaryMessage cachedKeyframe;
+    private volatile ByteBuffer cachedCodecConfig;
+    /** Serializes the cache with joins and broadcasts, so a joining client misses no frame and gets none twice. */
+    private final Object cacheLock = new Object();
+    private final GopCache gopCache; // guarded by cacheLock
+    private volatile Runnable keyframeRequestListener;
 
-    public BroadcastService(ObjectMapper objectMapper) {
-        this.objectMapper = objectMapper;
+    /**
+     * {@code gopCacheMaxBytes} caps the frames kept for joining viewers, and
+     * {@code rewindNanos} is how far back whole GOPs are kept for
+     * {@link #addClient(String, WebSocketSession, long) rewinds}.
+     */
+    public BroadcastService(PipelineMetrics.RenditionMetrics metrics, long gopCacheMaxBytes, long rewindNanos) {
+        this.metrics = metrics;
+        this.gopCache = new GopCache(gopCacheMaxBytes, rewindNanos);
     }
 
     public void setCodecConfig(byte[] config) {
@@ -39,33 +65,80 @@ public class BroadcastService {
         buf.put(CONFIG_MARKER);
         buf.put(config);
         buf.flip();
-        cachedCodecConfig = new BinaryMessage(buf);
+        cachedCodecConfig = buf;
+    }
+
+    /**
+     * Switches every viewer to a new codec config, e.g. when a replay moves
+     * to a segment from another encoder session. The config is queued behind
+     * frames already queued, and each viewer then waits for a keyframe.
+     */
+    public void broadcastCodecConfig(byte[] config) {
+        setCodecConfig(config);
+        ByteBuffer buf = cachedCodecConfig;
+        for (ClientSession client : clients.values()) {
+            client.offerConfig(buf);
+        }
+    }
+
+    /** Called when a viewer needs an IDR: it joined, or lost a frame and is waiting to resync. */
+    public void setKeyframeRequestListener(Runnable listener) {
+        this.keyframeRequestListener = listener;
     }
 
     public void addClient(String id, WebSocketSession session) {
-        clients.put(id, new ClientSession(session));
-        sendExecutor.submit(() -> {
-            try {
-                BinaryMessage config = cachedCodecConfig;
-                if (config != null) {
-                    synchronized (session) {
-                        session.sendMessage(config);
-                    }
-                }
-                BinaryMessage keyframe = cachedKeyframe;
-                if (keyframe != null) {
-                    synchronized (session) {
-                        session.sendMessage(keyframe);
-                    }
-                }
-            } catch (IOException e) {
-                log.debug("Failed to send initial data to {}", id);
-            }
-        });
+        addClient(id, session, 0);
+    }
+
+    /**
+     * Registers a viewer and queues its join burst: the codec config, then
+     * the cached GOP from the IDR at least {@code rewindNanos} old up to the
+     * newest frame. With a complete burst the viewer is in sync at once;
+     * otherwise it waits for a keyframe, which is requested.
+     */
+    public void addClient(String id, WebSocketSession session, long rewindNanos) {
+        // The initial burst goes through the client's queue, so no live frame
+        // can overtake it.
+        ClientSession client = new ClientSession(id, session);
+        GopCache.Burst burst;
+        synchronized (cacheLock) {
+            burst = gopCache.burst(rewindNanos, System.nanoTime());
+            client.offerInitial(cachedCodecConfig, burst);
+            clients.put(id, client);
+        }
+        if (!burst.complete()) {
+            requestKeyframe();
+        }
     }
 
     public void removeClient(String id) {
-        clients.remove(id);
+        ClientSession client = clients.remove(id);
+        if (client != null) {
+            client.close();
+        }
+    }
+
+    /** Drops the cached frames, e.g. when the encoder that produced them stops. */
+    public void clearCachedFrames() {
+        synchronized (cacheLock) {
+            gopCache.clear();
+        }
+    }
+
+    /** Closes every viewer's connection; each is removed as its close completes. */
+    public void disconnectAll() {
+        disconnectAll(CloseStatus.GOING_AWAY);
+    }
+
+    /** Closes every viewer's connection with {@code status}. */
+    public void disconnectAll(CloseStatus status) {
+        for (ClientSession client : clients.values()) {
+            try {
+                client.session.close(status);
+            } catch (IOException e) {
+                log.debug("Failed to close client {}", client.id);
+            }
+        }
     }
 
     public boolean hasClients() {
@@ -76,66 +149,332 @@ public class BroadcastService {
         return Set.copyOf(clients.keySet());
     }
 
-    public void broadcastFrame(byte[] h264Data, boolean keyframe, long timestampMs) {
-        if (clients.isEmpty()) return;
+    /**
+     * Caches a right-sized copy of an encoded frame and queues the frame
+     * for every viewer. Each queued send takes its own reference; the caller
+     * keeps and releases its own. {@code capturedAt} is the {@link System#nanoTime()}
+     * the frame's capture started.
+     */
+    public void broadcastFrame(FrameBufferPool.Frame frame, boolean keyframe, long capturedAt) {
+        boolean recoveryNeeded = false;
+        synchronized (cacheLock) {
+            gopCache.add(frame, keyframe, System.nanoTime());
+            for (ClientSession client : clients.values()) {
+                if (client.offer(frame, keyframe, capturedAt)) {
+                    recoveryNeeded = true;
+                }
+            }
+        }
+        if (recoveryNeeded) {
+            requestKeyframe();
+        }
+    }
 
-        ByteBuffer buf = ByteBuffer.allocate(5 + h264Data.length);
-        buf.put((byte) (keyframe ? 1 : 0));
-        buf.putInt((int) timestampMs);
-        buf.put(h264Data);
-        buf.flip();
+    private void requestKeyframe() {
+        Runnable listener = keyframeRequestListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
 
-        BinaryMessage message = new BinaryMessage(buf);
+    /** Bytes of encoded frames held for joining viewers, within the cache budget. */
+    public long getGopCacheBytes() {
+        synchronized (cacheLock) {
+            return gopCache.bytes();
+        }
+    }
 
-        if (keyframe) {
-            cachedKeyframe = message;
+    public int getGopCacheFrames() {
+        synchronized (cacheLock) {
+            return gopCache.frames();
         }
+    }
+
+    /** Per-client send statistics, as measured from the frames offered to each client. */
+    public List<ClientStats> getClientStats() {
+        List<ClientStats> stats = new ArrayList<>(clients.size());
+        clients.values().forEach(client -> stats.add(client.stats()));
+        return stats;
+    }
+
+    /** Fraction of clients currently congested; 0 when there are none. */
+    public double getCongestedFraction() {
+        int total = 0;
+        int congested = 0;
+        for (ClientSession client : clients.values()) {
+            total++;
+            if (client.isCongested()) congested++;
+        }
+        return total == 0 ? 0 : (double) congested / total;
+    }
+
+    /** Offers {@code status} to every viewer; an unsent older status is replaced. */
+    void offerLockStatus(LockStatusPublisher.LockStatus status) {
+        for (ClientSession client : clients.values()) {
+            client.offerControl(status.messageFor(client.id, client.binaryControl));
+        }
+    }
+
+    /** Offers {@code status} to one viewer, if it watches this rendition. */
+    void offerLockStatus(String sessionId, LockStatusPublisher.LockStatus status) {
+        ClientSession client = clients.get(sessionId);
+        if (client != null) {
+            client.offerControl(status.messageFor(sessionId, client.binaryControl));
+        }
+    }
+
+    /**
+     * {@code dropped} counts frames discarded from a full send queue and
+     * {@code withheld} the deltas skipped while waiting for a keyframe.
+     * {@code queueDepth} is the current send-queue occupancy and
+     * {@code maxQueueDepth} its high-water mark. {@code dropRate} and
+     * {@code latencyMs} are moving averages: the share of offered frames that
+     * overflowed the queue, and the time from offer to send completion.
+     */
+    public record ClientStats(String id, long sent, long dropped, long withheld,
+                              int queueDepth, int maxQueueDepth,
+                              double dropRate, double latencyMs, boolean congested) {}
+
+    /**
+     * Only live {@code KEYFRAME} and {@code DELTA} entries count against the
+     * queue capacity. {@code BURST} frames belong to the join burst and are
+     * never dropped, and a {@code CONFIG} must not cost a viewer a frame.
+     */
+    private enum Kind { CONFIG, BURST, KEYFRAME, DELTA }
+
+    /**
+     * A queued send. The message wraps its own read-only view, since sending
+     * consumes the buffer's position; {@code frame} is the buffer it
+     * references, null for codec config. {@code capturedAt} is 0 for the join
+     * burst, whose frames may be arbitrarily old.
+     */
+    private record Pending(BinaryMessage message, FrameBufferPool.Frame frame, Kind kind,
+                           long queuedAt, long capturedAt) {
 
-        clients.forEach((id, client) -> {
-            if (client.inFlight.compareAndSet(false, true)) {
-                sendExecutor.submit(() -> {
+        void release() {
+            if (frame != null) frame.release();
+        }
+    }
+
+    /**
+     * One viewer's send queue, drained in order by at most one virtual thread.
+     * Beside the frames it holds one control message, the latest lock status;
+     * a newer one replaces it if it has not been sent, and it is sent ahead of
+     * queued frames.
+     * When it overflows, pending deltas are discarded (they are useless once
+     * one is missing) while codec config and IDRs are kept; the client then
+     * skips deltas until the next keyframe, so its decoder never sees a
+     * broken reference chain. A queued IDR is only discarded when a newer one
+     * supersedes it and the queue is still full.
+     */
+    private class ClientSession {
+        final String id;
+        final WebSocketSession session;
+        final boolean binaryControl;
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        final AtomicLong withheld = new AtomicLong();
+
+        // Guarded by this.
+        private final ArrayDeque<Pending> queue = new ArrayDeque<>(CLIENT_QUEUE_CAPACITY + 2);
+        private WebSocketMessage<?> pendingControl;
+        private boolean draining;
+        private boolean closed;
+        private int maxQueueDepth;
+        private int framesQueued; // live frames, the entries counted against CLIENT_QUEUE_CAPACITY
+        // Starts true so a new client begins at a keyframe.
+        private boolean awaitingKeyframe = true;
+
+        // Single writer each: the broadcasting thread for dropRate, the
+        // draining thread for latencyMs.
+        volatile double dropRate;
+        volatile double latencyMs;
+
+        ClientSession(String id, WebSocketSession session) {
+            this.id = id;
+            this.session = session;
+            this.binaryControl = Boolean.TRUE.equals(session.getAttributes().get(BINARY_CONTROL_ATTRIBUTE));
+        }
+
+        synchronized void offerControl(WebSocketMessage<?> message) {
+            if (closed) return;
+            pendingControl = message;
+            startDrain();
+        }
+
+        /** Queues the join burst ahead of any live frame; takes over the burst's references. */
+        synchronized void offerInitial(ByteBuffer config, GopCache.Burst burst) {
+            long now = System.nanoTime();
+            if (config != null) {
+                queue.add(new Pending(new BinaryMessage(config.asReadOnlyBuffer()), null, Kind.CONFIG, now, 0));
+            }
+            for (FrameBufferPool.Frame frame : burst.frames()) {
+                queue.add(new Pending(new BinaryMessage(frame.view()), frame, Kind.BURST, now, 0));
+            }
+            // A complete burst ends at the newest frame, so the next live delta follows on.
+            awaitingKeyframe = !burst.complete();
+            startDrain();
+        }
+
+        synchronized void offerConfig(ByteBuffer config) {
+            if (closed) return;
+            queue.add(new Pending(new BinaryMessage(config.asReadOnlyBuffer()), null, Kind.CONFIG, System.nanoTime(), 0));
+            awaitingKeyframe = true;
+            startDrain();
+        }
+
+        /** Queues a live frame; returns true if the client now needs an IDR. */
+        boolean offer(FrameBufferPool.Frame frame, boolean keyframe, long capturedAt) {
+            boolean overflow = false;
+            boolean needsKeyframe;
+            synchronized (this) {
+                if (closed) return false;
+                if (awaitingKeyframe && !keyframe) {
+                    withheld.incrementAndGet();
+                    return false;
+                }
+                if (framesQueued >= CLIENT_QUEUE_CAPACITY) {
+                    overflow = true;
+                    recordDropped(discardDeltas());
+                    if (keyframe) {
+                        if (framesQueued >= CLIENT_QUEUE_CAPACITY) discardOldestKeyframe();
+                    } else {
+                        recordDropped(1);
+                        awaitingKeyframe = true;
+                    }
+                }
+                if (keyframe) awaitingKeyframe = false;
+                if (!awaitingKeyframe) {
+                    queue.add(new Pending(new BinaryMessage(frame.view()), frame.retain(),
+                            keyframe ? Kind.KEYFRAME : Kind.DELTA, System.nanoTime(), capturedAt));
+                    framesQueued++;
+                    maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+                    startDrain();
+                }
+                needsKeyframe = awaitingKeyframe;
+            }
+            recordOffer(overflow);
+            return needsKeyframe;
+        }
+
+        /** Drops every queued delta; returns how many. Caller holds this. */
+        private int discardDeltas() {
+            int discarded = 0;
+            for (Iterator<Pending> it = queue.iterator(); it.hasNext(); ) {
+                Pending p = it.next();
+                if (p.kind() == Kind.DELTA) {
+                    it.remove();
+                    p.release();
+                    framesQueued--;
+                    discarded++;
+                }
+            }
+            return discarded;
+        }
+
+        /** Caller holds this. */
+        private void discardOldestKeyframe() {
+            for (Iterator<Pending> it = queue.iterator(); it.hasNext(); ) {
+                Pending p = it.next();
+                if (p.kind() == Kind.KEYFRAME) {
+                    it.remove();
+                    p.release();
+                    framesQueued--;
+                    recordDropped(1);
+                    return;
+                }
+            }
+        }
+
+        /** Caller holds this. */
+        private void startDrain() {
+            if (draining || (queue.isEmpty() && pendingControl == null)) return;
+            draining = true;
+            sendExecutor.submit(this::drain);
+        }
+
+        private void drain() {
+            while (true) {
+                WebSocketMessage<?> control;
+                Pending next;
+                synchronized (this) {
+                    control = closed ? null : pendingControl;
+                    pendingControl = null;
+                    next = closed || control != null ? null : queue.poll();
+                    if (next != null && (next.kind() == Kind.KEYFRAME || next.kind() == Kind.DELTA)) framesQueued--;
+                    if (control == null && next == null) {
+                        draining = false;
+                        return;
+                    }
+                }
+                if (control != null) {
                     try {
-                        synchronized (client.session) {
-                            client.session.sendMessage(message);
+                        synchronized (session) {
+                            session.sendMessage(control);
                         }
                     } catch (IOException e) {
                         log.debug("Send failed for client {}", id);
-                    } finally {
-                        client.inFlight.set(false);
                     }
-                });
+                    continue;
+                }
+                try {
+                    synchronized (session) {
+                        session.sendMessage(next.message());
+                    }
+                    if (next.kind() != Kind.CONFIG) {
+                        recordSent(next);
+                    }
+                } catch (IOException e) {
+                    log.debug("Send failed for client {}", id);
+                } finally {
+                    next.release();
+                }
             }
-        });
-    }
+        }
 
-    public void sendTo(String sessionId, Object message) {
-        ClientSession client = clients.get(sessionId);
-        if (client == null) return;
+        synchronized void close() {
+            closed = true;
+            pendingControl = null;
+            framesQueued = 0;
+            queue.forEach(Pending::release);
+            queue.clear();
+        }
 
-        String json;
-        try {
-            json = objectMapper.writeValueAsString(message);
-        } catch (JsonProcessingException e) {
-            return;
+        void recordOffer(boolean drop) {
+            dropRate += EWMA_ALPHA * ((drop ? 1 : 0) - dropRate);
         }
 
-        sendExecutor.submit(() -> {
-            try {
-                synchronized (client.session) {
-                    client.session.sendMessage(new TextMessage(json));
-                }
-            } catch (IOException e) {
-                log.debug("Send failed for client {}", sessionId);
+        void recordSent(Pending p) {
+            long now = System.nanoTime();
+            long nanos = now - p.queuedAt();
+            sent.incrementAndGet();
+            latencyMs += EWMA_ALPHA * (nanos / 1_000_000.0 - latencyMs);
+            metrics.sends.increment();
+            metrics.sendLatency.record(nanos, TimeUnit.NANOSECONDS);
+            if (p.capturedAt() != 0) {
+                metrics.frameLatency.record(now - p.capturedAt(), TimeUnit.NANOSECONDS);
             }
-        });
-    }
+        }
 
-    private static class ClientSession {
-        final WebSocketSession session;
-        final AtomicBoolean inFlight = new AtomicBoolean(false);
+        void recordDropped(int frames) {
+            if (frames == 0) return;
+            dropped.addAndGet(frames);
+            metrics.drops.increment(frames);
+        }
 
-        ClientSession(WebSocketSession session) {
-            this.session = session;
+        boolean isCongested() {
+            return dropRate > CONGESTED_DROP_RATE || latencyMs > CONGESTED_LATENCY_MS;
+        }
+
+        ClientStats stats() {
+            int depth;
+            int maxDepth;
+            synchronized (this) {
+                depth = queue.size();
+                maxDepth = maxQueueDepth;
+            }
+            return new ClientStats(id, sent.get(), dropped.get(), withheld.get(), depth, maxDepth,
+                    dropRate, latencyMs, isCongested());
         }
     }
 }
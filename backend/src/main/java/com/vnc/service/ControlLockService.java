@@ -1,24 +1,131 @@
 package com.vnc.service;
 
-import java.util.concurrent.atomic.AtomicReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+
+/**
+ * One app's control lock, held as a lease in a {@link LockStore} under the
+ * app's id. {@link #heartbeat()} renews the lease this node granted, and
+ * picks up holders on other nodes that share the store; without it a lease
+ * runs out after its TTL. Each grant carries a fencing token: input is
+ * stamped with its sender's token and applied only while that token still
+ * holds the lock, so input queued by a holder that has since lost it is
+ * dropped.
+ *
+ * <p>Changes go through the store under this object's monitor; reads use
+ * the last lease seen, which is at most a heartbeat old for other nodes'.
+ * A store that fails counts as not granting: a held lease then lapses at
+ * its TTL.
+ */
 public class ControlLockService {
 
-    private final AtomicReference<String> controllerId = new AtomicReference<>();
+    private static final Logger log = LoggerFactory.getLogger(ControlLockService.class);
+
+    /** The token of no lease; grants start at 1. */
+    public static final long NO_TOKEN = 0;
+
+    private final String lock;
+    private final LockStore store;
+    private final long ttlMillis;
+
+    private volatile LockStore.Lease lease; // last seen, ours or another node's; null when free
+    private boolean granted;                // guarded by this: lease was granted here, so it is ours to renew
+
+    public ControlLockService(String lock, LockStore store, long ttlMillis) {
+        this.lock = lock;
+        this.store = store;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public synchronized boolean tryLock(String sessionId) {
+        try {
+            LockStore.Lease acquired = store.acquire(lock, sessionId, ttlMillis);
+            if (acquired == null) return false;
+            lease = acquired;
+            granted = true;
+            return true;
+        } catch (IOException e) {
+            log.warn("Lock store failed to grant lock {}: {}", lock, e.toString());
+            return false;
+        }
+    }
 
-    public boolean tryLock(String sessionId) {
-        return controllerId.compareAndSet(null, sessionId);
+    public synchronized boolean unlock(String sessionId) {
+        LockStore.Lease held = lease;
+        if (!granted || held == null || !held.owner().equals(sessionId)) return false;
+        lease = null;
+        granted = false;
+        try {
+            store.release(lock, held.token());
+        } catch (IOException e) {
+            log.warn("Lock store failed to release lock {}; it frees at the lease's expiry: {}", lock, e.toString());
+        }
+        return true;
     }
 
-    public boolean unlock(String sessionId) {
-        return controllerId.compareAndSet(sessionId, null);
+    /**
+     * Renews this node's lease, or reloads the holder if another node's
+     * holds the lock; returns true if the holder changed. Call it well within
+     * the TTL.
+     */
+    public synchronized boolean heartbeat() {
+        LockStore.Lease before = lease;
+        LockStore.Lease after;
+        try {
+            after = granted ? store.renew(lock, before.token(), ttlMillis) : null;
+            if (after == null) {
+                if (granted) log.info("Lease on lock {} held by {} was lost", lock, before.owner());
+                granted = false;
+                after = store.current(lock);
+            }
+        } catch (IOException e) {
+            log.warn("Lock store failed to renew lock {}: {}", lock, e.toString());
+            return false;
+        }
+        lease = after;
+        return tokenOf(before) != tokenOf(after);
     }
 
     public boolean isController(String sessionId) {
-        return sessionId.equals(controllerId.get());
+        return fencingToken(sessionId) != NO_TOKEN;
+    }
+
+    /** The token of {@code sessionId}'s live lease, or {@link #NO_TOKEN} if it does not hold the lock. */
+    public long fencingToken(String sessionId) {
+        LockStore.Lease l = live();
+        return l != null && l.owner().equals(sessionId) ? l.token() : NO_TOKEN;
+    }
+
+    /** Whether {@code token} belongs to the live lease. */
+    public boolean isCurrent(long token) {
+        LockStore.Lease l = live();
+        return l != null && l.token() == token;
+    }
+
+    /** The session holding the lock, or {@code null}. */
+    public String getController() {
+        LockStore.Lease l = live();
+        return l != null ? l.owner() : null;
     }
 
     public boolean isLocked() {
-        return controllerId.get() != null;
+        return live() != null;
+    }
+
+    /** Releases this node's lease, so other nodes need not wait out its TTL. */
+    public synchronized void close() {
+        LockStore.Lease held = lease;
+        if (granted && held != null) unlock(held.owner());
+    }
+
+    private LockStore.Lease live() {
+        LockStore.Lease l = lease;
+        return l != null && l.isLiveAt(System.currentTimeMillis()) ? l : null;
+    }
+
+    private static long tokenOf(LockStore.Lease l) {
+        return l != null ? l.token() : NO_TOKEN;
     }
 }
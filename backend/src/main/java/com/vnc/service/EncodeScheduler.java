@@ -0,0 +1,344 @@
+package com.vnc.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Drives every app's capture and encode stages from one fixed pool of
+ * workers, sized to the CPU count. Work is picked earliest-deadline-first:
+ * a capture is due at the app's next frame time, and the encode that follows
+ * inherits that deadline, so an app that fell behind is served before apps
+ * that are on time. Apps without viewers are parked and take no slots until
+ * {@link Registration#wake()}.
+ */
+public class EncodeScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(EncodeScheduler.class);
+
+    /** One app's pipeline, as seen by the scheduler. */
+    public interface Task {
+        /** Whether anyone is watching; inactive tasks are parked. */
+        boolean isActive();
+
+        /** Runs the capture stage once; returns true if a frame was queued for encoding. */
+        boolean capture();
+
+        /** Encodes one queued frame, if any. */
+        void encodeNext();
+
+        /** Whether captured frames are waiting for the encoder. */
+        boolean hasQueuedFrames();
+    }
+
+    private final int workerCount;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+    private final PriorityQueue<Job> queue = new PriorityQueue<>(
+            Comparator.comparingLong((Job j) -> j.deadline).thenComparingLong(j -> j.seq));
+    private final List<Thread> workers = new ArrayList<>();
+    private final List<Registration> registrations = new ArrayList<>();
+    private final AtomicLong jobSeq = new AtomicLong();
+
+    private boolean running;
+
+    public EncodeScheduler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public EncodeScheduler(int workerCount) {
+        this.workerCount = Math.max(1, workerCount);
+    }
+
+    public void start() {
+        lock.lock();
+        try {
+            if (running) return;
+            running = true;
+            for (int i = 0; i < workerCount; i++) {
+                Thread t = new Thread(this::workLoop, "vnc-encode-worker-" + i);
+                t.setDaemon(true);
+                t.start();
+                workers.add(t);
+            }
+        } finally {
+            lock.unlock();
+        }
+        log.info("EncodeScheduler started – {} workers", workerCount);
+    }
+
+    public void stop() {
+        lock.lock();
+        try {
+            running = false;
+            queue.clear();
+            workAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Thread t : workers) {
+            try {
+                t.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        workers.clear();
+        log.info("EncodeScheduler stopped");
+    }
+
+    public Registration register(String name, Task task, long periodNanos) {
+        Registration reg = new Registration(name, task, periodNanos);
+        lock.lock();
+        try {
+            registrations.add(reg);
+            reg.nextDeadline = System.nanoTime();
+            enqueue(reg, Kind.CAPTURE, reg.nextDeadline);
+        } finally {
+            lock.unlock();
+        }
+        return reg;
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    public Stats getStats() {
+        lock.lock();
+        try {
+            int parked = 0;
+            for (Registration r : registrations) {
+                if (r.parked) parked++;
+            }
+            return new Stats(workerCount, registrations.size(), parked, queue.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void workLoop() {
+        while (true) {
+            Job job;
+            lock.lock();
+            try {
+                job = awaitDueJob();
+                if (job == null) return;
+                job.reg.inFlight++;
+            } finally {
+                lock.unlock();
+            }
+
+            long started = System.nanoTime();
+            try {
+                run(job);
+            } catch (Throwable t) {
+                log.error("Scheduled {} failed for {}", job.kind, job.reg.name, t);
+            } finally {
+                job.reg.busyNanos.addAndGet(System.nanoTime() - started);
+                lock.lock();
+                try {
+                    job.reg.inFlight--;
+                    reschedule(job);
+                    if (job.reg.inFlight == 0) {
+                        job.reg.idle.signalAll();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /** Blocks until the earliest job is due; returns null on shutdown. Caller holds the lock. */
+    private Job awaitDueJob() {
+        while (running) {
+            Job head = queue.peek();
+            if (head == null) {
+                workAvailable.awaitUninterruptibly();
+                continue;
+            }
+            long wait = head.deadline - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    workAvailable.awaitNanos(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                continue;
+            }
+            return queue.poll();
+        }
+        return null;
+    }
+
+    private void run(Job job) {
+        Registration reg = job.reg;
+        if (reg.cancelled) return;
+
+        switch (job.kind) {
+            case CAPTURE -> {
+                if (!reg.task.isActive()) {
+                    job.outcome = Outcome.PARK;
+                    return;
+                }
+                if (System.nanoTime() - job.deadline > reg.periodNanos) {
+                    reg.lateTicks.incrementAndGet();
+                }
+                job.outcome = reg.task.capture() ? Outcome.FRAME_QUEUED : Outcome.NONE;
+            }
+            case ENCODE -> reg.task.encodeNext();
+        }
+    }
+
+    /** Queues follow-up work for the job's app. Caller holds the lock. */
+    private void reschedule(Job job) {
+        Registration reg = job.reg;
+        if (reg.cancelled || !running) return;
+
+        switch (job.kind) {
+            case CAPTURE -> {
+                if (job.outcome == Outcome.PARK) {
+                    reg.parked = true;
+                    // A viewer may have joined after isActive() but before parking,
+                    // when wake() was still a no-op.
+                    if (reg.task.isActive()) {
+                        reg.parked = false;
+                        reg.nextDeadline = System.nanoTime();
+                        enqueue(reg, Kind.CAPTURE, reg.nextDeadline);
+                    }
+                    return;
+                }
+                long next = reg.nextDeadline + reg.periodNanos;
+                long now = System.nanoTime();
+                // Behind by more than a frame: skip the missed ticks instead of bursting.
+                reg.nextDeadline = next < now - reg.periodNanos ? now : next;
+                enqueue(reg, Kind.CAPTURE, reg.nextDeadline);
+                if (job.outcome == Outcome.FRAME_QUEUED && !reg.encodeQueued) {
+                    reg.encodeQueued = true;
+                    enqueue(reg, Kind.ENCODE, job.deadline);
+                }
+            }
+            case ENCODE -> {
+                // Checked under the lock, so a frame queued by a concurrent
+                // capture is either seen here or makes that capture enqueue
+                // its own encode job.
+                if (reg.task.hasQueuedFrames()) {
+                    enqueue(reg, Kind.ENCODE, job.deadline);
+                } else {
+                    reg.encodeQueued = false;
+                }
+            }
+        }
+    }
+
+    private void enqueue(Registration reg, Kind kind, long deadline) {
+        queue.add(new Job(reg, kind, deadline, jobSeq.incrementAndGet()));
+        workAvailable.signal();
+    }
+
+    private enum Kind { CAPTURE, ENCODE }
+
+    private enum Outcome { NONE, FRAME_QUEUED, PARK }
+
+    private static final class Job {
+        final Registration reg;
+        final Kind kind;
+        final long deadline;
+        final long seq;
+        Outcome outcome = Outcome.NONE;
+
+        Job(Registration reg, Kind kind, long deadline, long seq) {
+            this.reg = reg;
+            this.kind = kind;
+            this.deadline = deadline;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * An app's slot in the scheduler. Mutable state is guarded by the
+     * scheduler lock; at most one capture and one encode job per app are
+     * queued or running at any time.
+     */
+    public final class Registration {
+        private final String name;
+        private final Task task;
+        private final Condition idle = lock.newCondition();
+        private final AtomicLong lateTicks = new AtomicLong();
+        private final AtomicLong busyNanos = new AtomicLong();
+
+        // Written under the lock; volatile because run() reads it outside.
+        private volatile long periodNanos;
+        private long nextDeadline;
+        private boolean parked;
+        private boolean encodeQueued;
+        private boolean cancelled;
+        private int inFlight;
+
+        private Registration(String name, Task task, long periodNanos) {
+            this.name = name;
+            this.task = task;
+            this.periodNanos = periodNanos;
+        }
+
+        /** Resumes a parked app with an immediate capture. */
+        public void wake() {
+            lock.lock();
+            try {
+                if (!parked || cancelled) return;
+                parked = false;
+                nextDeadline = System.nanoTime();
+                enqueue(this, Kind.CAPTURE, nextDeadline);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Removes the app and waits for its running jobs to finish. */
+        public void cancel() {
+            lock.lock();
+            try {
+                cancelled = true;
+                registrations.remove(this);
+                queue.removeIf(j -> j.reg == this);
+                while (inFlight > 0) {
+                    idle.awaitUninterruptibly();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Changes the frame interval from the next capture on. */
+        public void setPeriodNanos(long periodNanos) {
+            lock.lock();
+            try {
+                this.periodNanos = periodNanos;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Total time workers have spent running this app's jobs. */
+        public long getBusyNanos() {
+            return busyNanos.get();
+        }
+
+        /** Capture ticks that started more than one period after their deadline. */
+        public long getLateTicks() {
+            return lateTicks.get();
+        }
+    }
+
+    public record Stats(int workers, int apps, int parkedApps, int queuedJobs) {}
+}
@@ -0,0 +1,105 @@
+package com.vnc.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.UnaryOperator;
+
+/**
+ * Locks shared through a directory, one {@code <lock>.lease} file each, so
+ * nodes on one host (or on a shared file system with working locks) see the
+ * same holders. Every operation reads and rewrites its file under an
+ * exclusive {@link FileLock}. A file holds one line,
+ * {@code <token> <expires at ms> <owner>}, with owner {@code -} once
+ * released; the token stays, so the next grant still gets a larger one.
+ * Expiry is wall-clock time, so sharing nodes need synchronized clocks.
+ */
+final class FileLockStore implements LockStore {
+
+    private static final String RELEASED = "-";
+
+    private final Path directory;
+
+    FileLockStore(Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public Lease acquire(String lock, String owner, long ttlMillis) throws IOException {
+        long now = System.currentTimeMillis();
+        Lease[] granted = new Lease[1];
+        update(lock, stored -> {
+            if (stored != null && !stored.owner().equals(RELEASED) && stored.isLiveAt(now)) return stored;
+            granted[0] = new Lease(owner, (stored != null ? stored.token() : 0) + 1, now + ttlMillis);
+            return granted[0];
+        });
+        return granted[0];
+    }
+
+    @Override
+    public Lease renew(String lock, long token, long ttlMillis) throws IOException {
+        Lease renewed = update(lock, stored -> {
+            if (stored == null || stored.token() != token || stored.owner().equals(RELEASED)) return stored;
+            return new Lease(stored.owner(), token, System.currentTimeMillis() + ttlMillis);
+        });
+        return renewed != null && renewed.token() == token && !renewed.owner().equals(RELEASED) ? renewed : null;
+    }
+
+    @Override
+    public void release(String lock, long token) throws IOException {
+        update(lock, stored -> stored != null && stored.token() == token
+                ? new Lease(RELEASED, token, 0) : stored);
+    }
+
+    @Override
+    public Lease current(String lock) throws IOException {
+        Lease stored = update(lock, UnaryOperator.identity());
+        if (stored == null || stored.owner().equals(RELEASED) || !stored.isLiveAt(System.currentTimeMillis())) {
+            return null;
+        }
+        return stored;
+    }
+
+    /**
+     * Replaces the stored lease with {@code change} applied to it, holding the
+     * file lock throughout; returns what is stored afterwards. Threads of this
+     * process queue on the monitor, since a {@link FileLock} only keeps other
+     * processes out.
+     */
+    private synchronized Lease update(String lock, UnaryOperator<Lease> change) throws IOException {
+        Files.createDirectories(directory);
+        try (FileChannel channel = FileChannel.open(directory.resolve(lock + ".lease"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.lock(); // released with the channel
+            Lease stored = read(channel);
+            Lease next = change.apply(stored);
+            if (next != stored) {
+                byte[] line = (next.token() + " " + next.expiresAtMillis() + " " + next.owner() + "\n")
+                        .getBytes(StandardCharsets.UTF_8);
+                channel.truncate(0);
+                channel.write(ByteBuffer.wrap(line), 0);
+            }
+            return next;
+        }
+    }
+
+    private static Lease read(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size == 0) return null;
+        if (size > 4096) throw new IOException("Lease file too large: " + size + " bytes");
+        ByteBuffer buf = ByteBuffer.allocate((int) size);
+        while (buf.hasRemaining() && channel.read(buf, buf.position()) >= 0) {}
+        String[] fields = new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8).strip().split(" ", 3);
+        if (fields.length != 3) throw new IOException("Malformed lease file");
+        try {
+            return new Lease(fields[2], Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed lease file", e);
+        }
+    }
+}
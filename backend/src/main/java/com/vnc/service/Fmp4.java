@@ -0,0 +1,275 @@
+package com.vnc.service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * ISO BMFF boxes for a fragmented MP4 with one H.264 track: an init segment
+ * ({@code ftyp} + {@code moov}) and, per fragment, a {@code moof} plus the
+ * {@code mdat} header. Samples are the encoder's AVCC access units as they
+ * are, and the track timescale is milliseconds, the unit of the frame
+ * header's timestamp.
+ */
+final class Fmp4 {
+
+    static final int TIMESCALE = 1000;
+
+    private static final int TRACK_ID = 1;
+    /** sample_depends_on = 2 (an IDR depends on nothing). */
+    private static final int SYNC_SAMPLE_FLAGS = 0x02000000;
+    /** sample_depends_on = 1, sample_is_non_sync_sample = 1. */
+    private static final int NON_SYNC_SAMPLE_FLAGS = 0x01010000;
+    private static final int[] UNITY_MATRIX = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+
+    record Sample(int duration, int size, boolean keyframe) {}
+
+    private Fmp4() {}
+
+    /** {@code avcC} is the AVCDecoderConfigurationRecord from the encoder. */
+    static ByteBuffer initSegment(byte[] avcC, int width, int height) {
+        Boxes b = new Boxes(1024 + avcC.length);
+        b.open("ftyp");
+        b.fourcc("isom").u32(0x200).fourcc("isom").fourcc("iso6").fourcc("avc1").fourcc("mp41");
+        b.close();
+
+        b.open("moov");
+        b.full("mvhd", 0, 0).u32(0).u32(0).u32(TIMESCALE).u32(0)
+                .u32(0x00010000).u16(0x0100).zeros(10).matrix().zeros(24).u32(TRACK_ID + 1);
+        b.close();
+
+        b.open("trak");
+        // Flags: track enabled and in movie.
+        b.full("tkhd", 0, 3).u32(0).u32(0).u32(TRACK_ID).u32(0).u32(0).zeros(8)
+                .u16(0).u16(0).u16(0).u16(0).matrix().u32(width << 16).u32(height << 16);
+        b.close();
+        b.open("mdia");
+        b.full("mdhd", 0, 0).u32(0).u32(0).u32(TIMESCALE).u32(0).u16(0x55C4 /* "und" */).u16(0);
+        b.close();
+        b.full("hdlr", 0, 0).u32(0).fourcc("vide").zeros(12).ascii("VideoHandler\0");
+        b.close();
+        b.open("minf");
+        b.full("vmhd", 0, 1).zeros(8);
+        b.close();
+        b.open("dinf");
+        b.full("dref", 0, 0).u32(1);
+        b.full("url ", 0, 1); // media is in this file
+        b.close();
+        b.close();
+        b.close();
+        b.open("stbl");
+        b.full("stsd", 0, 0).u32(1);
+        b.open("avc1").zeros(6).u16(1).zeros(16).u16(width).u16(height)
+                .u32(0x00480000).u32(0x00480000).u32(0).u16(1).zeros(32).u16(0x0018).u16(0xFFFF);
+        b.open("avcC").bytes(avcC);
+        b.close();
+        b.close();
+        b.close();
+        // Sample tables stay empty; every sample is described by a trun.
+        b.full("stts", 0, 0).u32(0);
+        b.close();
+        b.full("stsc", 0, 0).u32(0);
+        b.close();
+        b.full("stsz", 0, 0).u32(0).u32(0);
+        b.close();
+        b.full("stco", 0, 0).u32(0);
+        b.close();
+        b.close(); // stbl
+        b.close(); // minf
+        b.close(); // mdia
+        b.close(); // trak
+
+        b.open("mvex");
+        b.full("trex", 0, 0).u32(TRACK_ID).u32(1).u32(0).u32(0).u32(0);
+        b.close();
+        b.close();
+        b.close(); // moov
+        return b.finish();
+    }
+
+    /**
+     * A {@code moof} for {@code samples} followed by the header of the
+     * {@code mdat} holding their {@code dataBytes}, which the caller writes
+     * straight after. {@code sequence} counts fragments from 1 within a file.
+     */
+    static ByteBuffer fragmentHeader(int sequence, long baseDecodeTime, List<Sample> samples, int dataBytes) {
+        Boxes b = new Boxes(128 + 12 * samples.size());
+        b.open("moof");
+        b.full("mfhd", 0, 0).u32(sequence);
+        b.close();
+        b.open("traf");
+        // default-base-is-moof: data offsets count from the start of this moof.
+        b.full("tfhd", 0, 0x020000).u32(TRACK_ID);
+        b.close();
+        b.full("tfdt", 1, 0).u64(baseDecodeTime);
+        b.close();
+        // data-offset, sample-duration, sample-size and sample-flags present.
+        b.full("trun", 0, 0x000701).u32(samples.size());
+        int dataOffsetAt = b.position();
+        b.u32(0);
+        for (Sample s : samples) {
+            b.u32(s.duration()).u32(s.size()).u32(s.keyframe() ? SYNC_SAMPLE_FLAGS : NON_SYNC_SAMPLE_FLAGS);
+        }
+        b.close();
+        b.close(); // traf
+        b.close(); // moof
+        int moofSize = b.position();
+        b.patch(dataOffsetAt, moofSize + 8);
+        b.u32(8 + dataBytes).fourcc("mdat");
+        return b.finish();
+    }
+
+    /**
+     * One fragment read back from a file: its samples, in decode order from
+     * {@code baseDecodeTime}, start at {@code dataOffset}, and the next
+     * fragment starts at {@code end}.
+     */
+    record Fragment(long baseDecodeTime, int[] durations, int[] sizes, boolean[] keyframes,
+                    int dataOffset, int end) {}
+
+    /**
+     * Reads the {@code moof} at {@code offset} and the size of the
+     * {@code mdat} after it. Only the fields this class writes are
+     * understood. Throws {@link IllegalArgumentException} for anything else.
+     */
+    static Fragment readFragment(ByteBuffer file, int offset) {
+        int moofSize = file.getInt(offset);
+        requireBox(file, offset, "moof");
+        long base = 0;
+        int[] durations = null;
+        int[] sizes = null;
+        boolean[] keyframes = null;
+        int dataOffset = 0;
+        int traf = findChild(file, offset, moofSize, "traf");
+        int trafEnd = traf + file.getInt(traf);
+        for (int p = traf + 8; p < trafEnd; p += boxSize(file, p)) {
+            switch (fourcc(file, p + 4)) {
+                case "tfdt" -> base = file.get(p + 8) == 1 ? file.getLong(p + 12) : file.getInt(p + 12) & 0xFFFFFFFFL;
+                case "trun" -> {
+                    int flags = file.getInt(p + 8) & 0xFFFFFF;
+                    if (flags != 0x000701) throw new IllegalArgumentException("Unsupported trun flags " + flags);
+                    int count = file.getInt(p + 12);
+                    // 20 header bytes, then 12 per sample: a count the box cannot hold is corrupt.
+                    if (count < 0 || count > (boxSize(file, p) - 20) / 12) {
+                        throw new IllegalArgumentException("Bad trun sample count " + count + " at " + p);
+                    }
+                    dataOffset = offset + file.getInt(p + 16);
+                    durations = new int[count];
+                    sizes = new int[count];
+                    keyframes = new boolean[count];
+                    for (int i = 0, q = p + 20; i < count; i++, q += 12) {
+                        durations[i] = file.getInt(q);
+                        sizes[i] = file.getInt(q + 4);
+                        keyframes[i] = (file.getInt(q + 8) & 0x00010000) == 0;
+                    }
+                }
+                default -> {}
+            }
+        }
+        if (durations == null) throw new IllegalArgumentException("Fragment without trun at " + offset);
+        int mdat = offset + moofSize;
+        requireBox(file, mdat, "mdat");
+        return new Fragment(base, durations, sizes, keyframes, dataOffset, mdat + file.getInt(mdat));
+    }
+
+    private static int findChild(ByteBuffer file, int parent, int parentSize, String type) {
+        for (int p = parent + 8; p < parent + parentSize; p += boxSize(file, p)) {
+            if (fourcc(file, p + 4).equals(type)) return p;
+        }
+        throw new IllegalArgumentException("No " + type + " in box at " + parent);
+    }
+
+    private static int boxSize(ByteBuffer file, int offset) {
+        int size = file.getInt(offset);
+        if (size < 8) throw new IllegalArgumentException("Bad box size " + size + " at " + offset);
+        return size;
+    }
+
+    private static void requireBox(ByteBuffer file, int offset, String type) {
+        if (offset + 8 > file.limit() || !fourcc(file, offset + 4).equals(type)) {
+            throw new IllegalArgumentException("Expected " + type + " at " + offset);
+        }
+    }
+
+    private static String fourcc(ByteBuffer file, int index) {
+        byte[] b = new byte[4];
+        file.get(index, b);
+        return new String(b, StandardCharsets.US_ASCII);
+    }
+
+    /** Big-endian box writer; {@link #close()} fills in the size of the innermost open box. */
+    private static final class Boxes {
+        private final ByteBuffer buf;
+        private final int[] open = new int[16];
+        private int depth;
+
+        Boxes(int capacity) {
+            buf = ByteBuffer.allocate(capacity);
+        }
+
+        Boxes open(String type) {
+            open[depth++] = buf.position();
+            return u32(0).fourcc(type);
+        }
+
+        Boxes full(String type, int version, int flags) {
+            return open(type).u32(version << 24 | flags);
+        }
+
+        void close() {
+            int start = open[--depth];
+            buf.putInt(start, buf.position() - start);
+        }
+
+        int position() {
+            return buf.position();
+        }
+
+        void patch(int index, int value) {
+            buf.putInt(index, value);
+        }
+
+        Boxes u16(int v) {
+            buf.putShort((short) v);
+            return this;
+        }
+
+        Boxes u32(int v) {
+            buf.putInt(v);
+            return this;
+        }
+
+        Boxes u64(long v) {
+            buf.putLong(v);
+            return this;
+        }
+
+        Boxes zeros(int n) {
+            for (int i = 0; i < n; i++) buf.put((byte) 0);
+            return this;
+        }
+
+        Boxes bytes(byte[] b) {
+            buf.put(b);
+            return this;
+        }
+
+        Boxes fourcc(String s) {
+            return ascii(s);
+        }
+
+        Boxes ascii(String s) {
+            buf.put(s.getBytes(StandardCharsets.US_ASCII));
+            return this;
+        }
+
+        Boxes matrix() {
+            for (int v : UNITY_MATRIX) buf.putInt(v);
+            return this;
+        }
+
+        ByteBuffer finish() {
+            return buf.flip();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.vnc.service;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Direct buffers for encoded frames. The encoder writes the wire header and
+ * payload into one {@link Frame}; every viewer then sends a read-only view of
+ * the same memory, and the buffer comes back to the pool when the last
+ * reference is released. Buffers are at least 64 KB, so a frame kept for
+ * long is {@link Frame#copy() copied} to one of its own size instead.
+ */
+public class FrameBufferPool {
+
+    private static final int MIN_CAPACITY = 64 * 1024;
+
+    private final int maxIdle;
+    private final ArrayDeque<ByteBuffer> idle = new ArrayDeque<>();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong acquired = new AtomicLong();
+
+    public FrameBufferPool(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /** Returns a cleared frame of at least {@code capacity} bytes, holding one reference. */
+    public Frame acquire(int capacity) {
+        acquired.incrementAndGet();
+        ByteBuffer buf = null;
+        synchronized (idle) {
+            for (Iterator<ByteBuffer> it = idle.iterator(); it.hasNext(); ) {
+                ByteBuffer candidate = it.next();
+                if (candidate.capacity() >= capacity) {
+                    it.remove();
+                    buf = candidate;
+                    break;
+                }
+            }
+        }
+        if (buf == null) {
+            // Round up so a slightly larger frame next time can reuse this buffer.
+            int size = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1);
+            buf = ByteBuffer.allocateDirect(size);
+            allocated.incrementAndGet();
+        }
+        buf.clear();
+        return new Frame(buf, true);
+    }
+
+    private void recycle(ByteBuffer buf) {
+        synchronized (idle) {
+            if (idle.size() < maxIdle) {
+                idle.add(buf);
+            }
+        }
+    }
+
+    public Stats getStats() {
+        int idleCount;
+        synchronized (idle) {
+            idleCount = idle.size();
+        }
+        return new Stats(idleCount, allocated.get(), acquired.get());
+    }
+
+    /**
+     * A pooled buffer with a reference count. The producer fills
+     * {@link #buffer()} and flips it before publishing; consumers only use
+     * {@link #view()}. Each holder releases exactly once.
+     */
+    public final class Frame {
+        private final ByteBuffer buffer;
+        private final boolean pooled;
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        private Frame(ByteBuffer buffer, boolean pooled) {
+            this.buffer = buffer;
+            this.pooled = pooled;
+        }
+
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        /** An independent read-only cursor over the published bytes. */
+        public ByteBuffer view() {
+            return buffer.asReadOnlyBuffer();
+        }
+
+        /**
+         * A frame of exactly the published bytes, on the heap and outside the
+         * pool, holding one reference; this frame keeps its own.
+         */
+        public Frame copy() {
+            ByteBuffer copy = ByteBuffer.allocate(buffer.remaining()).put(buffer.duplicate()).flip();
+            return new Frame(copy, false);
+        }
+
+        public Frame retain() {
+            int r;
+            do {
+                r = refs.get();
+                if (r <= 0) throw new IllegalStateException("Frame already released");
+            } while (!refs.compareAndSet(r, r + 1));
+            return this;
+        }
+
+        public void release() {
+            int r = refs.decrementAndGet();
+            if (r == 0) {
+                if (pooled) recycle(buffer);
+            } else if (r < 0) {
+                throw new IllegalStateException("Frame released twice");
+            }
+        }
+    }
+
+    /** {@code allocated} counts direct buffers created; the rest of {@code acquired} were reused. */
+    public record Stats(int idle, long allocated, long acquired) {}
+}
@@ -0,0 +1,252 @@
+package com.vnc.service;
+
+import com.vnc.swing.SwingApp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Capture → encode → broadcast for one app. Capture copies the damaged part
+ * of the app's canvas, which the EDT paints, into one of a small ring of
+ * buffers and hands it to the encode stage through a bounded queue, so
+ * capturing frame N+1 overlaps encoding frame N. The encode stage
+ * converts the buffer once through the {@link FrameScaler} and then encodes
+ * it for every rendition that has viewers. Broadcast is already asynchronous
+ * (per-client virtual threads), so it runs at the end of encode, sharing each
+ * encoder's pooled output buffer with that rendition's viewers.
+ * Both stages are run by the shared {@link EncodeScheduler}.
+ */
+public class FramePipeline implements EncodeScheduler.Task {
+
+    private static final Logger log = LoggerFactory.getLogger(FramePipeline.class);
+
+    private static final int CAPTURE_BUFFERS = 3;
+
+    private final String id;
+    private final SwingApp swingApp;
+    private final FrameScaler scaler;
+    private final List<Rendition> renditions;
+    private final PipelineMetrics metrics;
+    private final Rectangle bounds;
+    private final int width;
+    private final int height;
+
+    private final List<CaptureSlot> slots = new ArrayList<>(CAPTURE_BUFFERS);
+    private final BlockingQueue<CaptureSlot> freeSlots = new ArrayBlockingQueue<>(CAPTURE_BUFFERS);
+    private final BlockingQueue<CaptureSlot> encodeQueue = new ArrayBlockingQueue<>(CAPTURE_BUFFERS);
+
+    private final AtomicLong captured = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong captureDrops = new AtomicLong();
+    private final AtomicLong encoded = new AtomicLong();
+    private final AtomicLong encodeDrops = new AtomicLong();
+    private final AtomicLong broadcast = new AtomicLong();
+
+    private volatile EncodeScheduler.Registration registration;
+    private final AtomicLong retiredBusyNanos = new AtomicLong();
+
+    public FramePipeline(String id, SwingApp swingApp, FrameScaler scaler,
+                         List<Rendition> renditions, PipelineMetrics metrics, int width, int height) {
+        this.id = id;
+        this.swingApp = swingApp;
+        this.scaler = scaler;
+        this.renditions = renditions;
+        this.metrics = metrics;
+        this.bounds = new Rectangle(width, height);
+        this.width = width;
+        this.height = height;
+    }
+
+    /** Allocates the capture ring and registers with the scheduler. */
+    public void start(EncodeScheduler scheduler, long intervalNanos) {
+        for (int i = 0; i < CAPTURE_BUFFERS; i++) {
+            CaptureSlot slot = new CaptureSlot(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
+            slot.stale = new Rectangle(bounds);
+            slots.add(slot);
+            freeSlots.add(slot);
+        }
+        registration = scheduler.register("app-" + id, this, intervalNanos);
+    }
+
+    /** Unregisters and, once no stage is running, frees the capture ring. */
+    public void stop() {
+        EncodeScheduler.Registration reg = registration;
+        if (reg != null) {
+            reg.cancel();
+            retiredBusyNanos.addAndGet(reg.getBusyNanos());
+            registration = null;
+        }
+        encodeQueue.clear();
+        freeSlots.clear();
+        slots.clear();
+    }
+
+    /** Called when a viewer joins, so a parked app resumes capturing immediately. */
+    public void wake() {
+        EncodeScheduler.Registration reg = registration;
+        if (reg != null) {
+            reg.wake();
+        }
+    }
+
+    /** Changes the capture interval, e.g. to hold the app to its CPU budget. */
+    public void setIntervalNanos(long intervalNanos) {
+        EncodeScheduler.Registration reg = registration;
+        if (reg != null) {
+            reg.setPeriodNanos(intervalNanos);
+        }
+    }
+
+    /** Worker time spent on this app's capture and encode, across restarts. */
+    public long getBusyNanos() {
+        EncodeScheduler.Registration reg = registration;
+        return retiredBusyNanos.get() + (reg != null ? reg.getBusyNanos() : 0);
+    }
+
+    @Override
+    public boolean isActive() {
+        for (Rendition r : renditions) {
+            if (r.hasClients()) return true;
+        }
+        return false;
+    }
+
+    private boolean isKeyframeDue() {
+        for (Rendition r : renditions) {
+            if (r.isKeyframeDue()) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean capture() {
+        try {
+            long capturedAt = System.nanoTime();
+            if (!swingApp.isShowing()) return false;
+
+            // Every buffer is with the encoder: leave the damage pending for the next tick.
+            CaptureSlot slot = freeSlots.poll();
+            if (slot == null) {
+                captureDrops.incrementAndGet();
+                return false;
+            }
+
+            // Static screen: nothing to paint or encode, except a keyframe once
+            // the picture settles so late joiners receive the current image.
+            Rectangle dirty = swingApp.takeDirtyRegion(bounds);
+            if (dirty == null && !(encodeQueue.isEmpty() && isKeyframeDue())) {
+                freeSlots.add(slot);
+                skipped.incrementAndGet();
+                return false;
+            }
+
+            if (dirty != null) {
+                for (CaptureSlot s : slots) {
+                    s.stale = s.stale == null ? new Rectangle(dirty) : s.stale.union(dirty);
+                }
+                long t0 = System.nanoTime();
+                swingApp.copyCanvas(slot.image, slot.stale);
+                metrics.captureCopy.record(System.nanoTime() - t0, TimeUnit.NANOSECONDS);
+                slot.stale = null;
+            }
+
+            slot.dirty = dirty;
+            slot.capturedAt = capturedAt;
+            encodeQueue.add(slot);
+            captured.incrementAndGet();
+            return true;
+        } catch (Exception e) {
+            log.error("Capture error for app {}", id, e);
+        }
+        return false;
+    }
+
+    @Override
+    public void encodeNext() {
+        CaptureSlot slot = encodeQueue.poll();
+        if (slot != null) {
+            encode(slot);
+        }
+    }
+
+    @Override
+    public boolean hasQueuedFrames() {
+        return !encodeQueue.isEmpty();
+    }
+
+    private void encode(CaptureSlot slot) {
+        long capturedAt = slot.capturedAt;
+        try {
+            scaler.update(slot.image, slot.dirty);
+        } finally {
+            // The scaler keeps its own copy, so capture can reuse the buffer now.
+            slot.dirty = null;
+            freeSlots.add(slot);
+        }
+
+        for (Rendition rendition : renditions) {
+            if (!rendition.hasClients()) continue;
+            boolean sent;
+            try {
+                sent = rendition.encode(scaler, capturedAt);
+            } catch (Exception e) {
+                log.error("Encode error for app {} rendition {}", id, rendition.getName(), e);
+                sent = false;
+            }
+            if (sent) {
+                encoded.incrementAndGet();
+                broadcast.incrementAndGet();
+            } else {
+                encodeDrops.incrementAndGet();
+            }
+        }
+    }
+
+    public Stats getStats() {
+        EncodeScheduler.Registration reg = registration;
+        return new Stats(
+                freeSlots.size(), encodeQueue.size(),
+                captured.get(), skipped.get(), captureDrops.get(),
+                encoded.get(), encodeDrops.get(), broadcast.get(),
+                reg != null ? reg.getLateTicks() : 0,
+                renditions.stream().map(Rendition::getStats).toList());
+    }
+
+    /**
+     * {@code stale} is the area this buffer has not copied from the canvas
+     * since the screen last changed; it is only touched by the capture stage.
+     * {@code dirty} is the area that changed for the frame it carries to the
+     * encoder.
+     */
+    private static final class CaptureSlot {
+        final BufferedImage image;
+        Rectangle stale;
+        Rectangle dirty;
+        long capturedAt;
+
+        CaptureSlot(BufferedImage image) {
+            this.image = image;
+        }
+    }
+
+    /**
+     * Point-in-time pipeline counters. Queue depths are the capture buffers
+     * free for capture and the frames waiting for the encoder; drops count
+     * ticks skipped because no buffer was free and frames the encoder
+     * produced no packet for. {@code lateTicks} counts captures the shared
+     * scheduler started more than a frame interval late. Encode and
+     * broadcast counters are summed over renditions, one per packet.
+     */
+    public record Stats(int freeBuffers, int encodeQueueDepth,
+                        long captured, long skipped, long captureDrops,
+                        long encoded, long encodeDrops, long broadcast,
+                        long lateTicks, List<Rendition.Stats> renditions) {}
+}
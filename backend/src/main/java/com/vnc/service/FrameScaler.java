@@ -0,0 +1,175 @@
+package com.vnc.service;
+
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.swscale.SwsContext;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.ffmpeg.global.avutil.*;
+import static org.bytedeco.ffmpeg.global.swscale.*;
+
+/**
+ * Turns an app's capture buffers into YUV420P pictures for each of its
+ * renditions. The native BGR0 plane persists and only takes dirty-row
+ * uploads; it is converted to full-resolution YUV once per changed frame,
+ * and each smaller rendition is downscaled from that YUV picture on demand,
+ * at most once per change.
+ */
+public class FrameScaler {
+
+    private final int width;
+    private final int height;
+    private final PipelineMetrics metrics;
+    private final List<Output> outputs = new ArrayList<>();
+
+    private SwsContext toYuv;
+    private AVFrame rgbFrame;
+    private AVFrame yuvFrame;
+    private long generation;
+
+    public FrameScaler(int width, int height, PipelineMetrics metrics) {
+        this.width = width;
+        this.height = height;
+        this.metrics = metrics;
+    }
+
+    public synchronized void start() {
+        toYuv = sws_getContext(
+                width, height, AV_PIX_FMT_BGR0,
+                width, height, AV_PIX_FMT_YUV420P,
+                SWS_BILINEAR, null, null, (double[]) null);
+        rgbFrame = allocFrame(AV_PIX_FMT_BGR0, width, height);
+        yuvFrame = allocFrame(AV_PIX_FMT_YUV420P, width, height);
+        generation = 0;
+    }
+
+    /**
+     * Uploads the rows of {@code image} covered by {@code dirty} and refreshes
+     * the full-resolution YUV picture. With {@code null} the previous picture
+     * is kept as it is.
+     */
+    public synchronized void update(BufferedImage image, Rectangle dirty) {
+        if (rgbFrame == null || dirty == null || dirty.isEmpty()) return;
+
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int stride = rgbFrame.linesize(0);
+        int firstRow = Math.max(0, dirty.y);
+        int rows = Math.min(height, dirty.y + dirty.height) - firstRow;
+        if (rows <= 0) return;
+
+        long t0 = System.nanoTime();
+        packBgr0(pixels, rgbFrame.data(0).capacity((long) stride * height).asByteBuffer(),
+                width, firstRow, rows, stride);
+        long t1 = System.nanoTime();
+        sws_scale(toYuv,
+                rgbFrame.data(), rgbFrame.linesize(), 0, height,
+                yuvFrame.data(), yuvFrame.linesize());
+        metrics.pack.record(t1 - t0, TimeUnit.NANOSECONDS);
+        metrics.convert.record(System.nanoTime() - t1, TimeUnit.NANOSECONDS);
+        generation++;
+    }
+
+    /**
+     * The current picture at {@code w}x{@code h}: the full-resolution frame
+     * itself, or a downscale of it, redone only if the picture changed since.
+     */
+    public synchronized AVFrame frameFor(int w, int h) {
+        if (yuvFrame == null) return null;
+        if (w == width && h == height) return yuvFrame;
+
+        Output out = null;
+        for (Output o : outputs) {
+            if (o.width == w && o.height == h) {
+                out = o;
+                break;
+            }
+        }
+        if (out == null) {
+            out = new Output(w, h,
+                    sws_getContext(width, height, AV_PIX_FMT_YUV420P,
+                            w, h, AV_PIX_FMT_YUV420P,
+                            SWS_BILINEAR, null, null, (double[]) null),
+                    allocFrame(AV_PIX_FMT_YUV420P, w, h));
+            outputs.add(out);
+        }
+        if (out.generation != generation) {
+            long t0 = System.nanoTime();
+            sws_scale(out.sws,
+                    yuvFrame.data(), yuvFrame.linesize(), 0, height,
+                    out.frame.data(), out.frame.linesize());
+            metrics.downscale.record(System.nanoTime() - t0, TimeUnit.NANOSECONDS);
+            out.generation = generation;
+        }
+        return out.frame;
+    }
+
+    public synchronized void stop() {
+        for (Output o : outputs) {
+            sws_freeContext(o.sws);
+            av_frame_free(o.frame);
+        }
+        outputs.clear();
+        if (toYuv != null) {
+            sws_freeContext(toYuv);
+            toYuv = null;
+        }
+        if (rgbFrame != null) {
+            av_frame_free(rgbFrame);
+            rgbFrame = null;
+        }
+        if (yuvFrame != null) {
+            av_frame_free(yuvFrame);
+            yuvFrame = null;
+        }
+    }
+
+    private static AVFrame allocFrame(int format, int w, int h) {
+        AVFrame frame = av_frame_alloc();
+        frame.format(format);
+        frame.width(w);
+        frame.height(h);
+        av_frame_get_buffer(frame, 32);
+        return frame;
+    }
+
+    /**
+     * Copies rows of a TYPE_INT_RGB raster (0x00RRGGBB) into a BGR0 plane. Stored
+     * little-endian, each pixel lands as B, G, R, 0, so rows are bulk-copied
+     * instead of packed byte by byte.
+     */
+    static void packBgr0(int[] pixels, ByteBuffer dst, int width, int firstRow, int rows, int stride) {
+        IntBuffer out = dst.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        if (stride == width * 4) {
+            out.put(firstRow * width, pixels, firstRow * width, rows * width);
+            return;
+        }
+        int rowInts = stride / 4;
+        for (int y = firstRow; y < firstRow + rows; y++) {
+            out.put(y * rowInts, pixels, y * width, width);
+        }
+    }
+
+    /** A downscaled rendition size; {@code generation} is the picture it last scaled. */
+    private static final class Output {
+        final int width;
+        final int height;
+        final SwsContext sws;
+        final AVFrame frame;
+        long generation = -1;
+
+        Output(int width, int height, SwsContext sws, AVFrame frame) {
+            this.width = width;
+            this.height = height;
+            this.sws = sws;
+            this.frame = frame;
+        }
+    }
+}
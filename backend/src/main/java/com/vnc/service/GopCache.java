@@ -0,0 +1,128 @@
+package com.vnc.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The recent encoded frames of one rendition, as whole GOPs: each starts at
+ * an IDR and holds every delta after it, so a burst from any cached IDR
+ * decodes cleanly up to the newest frame. Each frame is
+ * {@link FrameBufferPool.Frame#copy() copied} in at its own size, since a
+ * pooled buffer is at least 64 KB however small the delta in it; the budget
+ * and {@link #bytes()} count the copies, which are all the cache holds.
+ *
+ * <p>Whole GOPs older than {@code windowNanos} are evicted, as are the
+ * oldest GOPs once the cache would exceed {@code maxBytes}. If the current
+ * GOP alone outgrows the budget, its later deltas are not cached and the
+ * cache is incomplete until the next IDR. Not thread-safe; its owner
+ * serializes access.
+ */
+final class GopCache {
+
+    /** Frames from an IDR to the newest, each retained for the caller; {@code complete} if none is missing. */
+    record Burst(List<FrameBufferPool.Frame> frames, boolean complete) {}
+
+    private record Entry(FrameBufferPool.Frame frame, boolean keyframe, int size, long addedAt) {}
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final long maxBytes;
+    private final long windowNanos;
+    private long bytes;
+    private int keyframes;
+    private boolean truncated;
+
+    GopCache(long maxBytes, long windowNanos) {
+        this.maxBytes = maxBytes;
+        this.windowNanos = windowNanos;
+    }
+
+    /** Caches a copy of {@code frame}, unless it is a delta the cache cannot decode up to. */
+    void add(FrameBufferPool.Frame frame, boolean keyframe, long nowNanos) {
+        int size = frame.buffer().remaining();
+        if (keyframe) {
+            truncated = false;
+        } else if (keyframes == 0 || truncated) {
+            return;
+        }
+        // An IDR may evict every older GOP; a delta never evicts its own.
+        while (keyframes > (keyframe ? 0 : 1) && bytes + size > maxBytes) {
+            evictOldestGop();
+        }
+        if (bytes + size > maxBytes) {
+            if (!keyframe) truncated = true;
+            return;
+        }
+        entries.addLast(new Entry(frame.copy(), keyframe, size, nowNanos));
+        bytes += size;
+        if (keyframe) keyframes++;
+        evictExpired(nowNanos);
+    }
+
+    /**
+     * A burst that starts at the newest IDR at least {@code rewindNanos} old,
+     * or the oldest if none is, and runs to the newest frame. With
+     * {@code rewindNanos} 0 that is the current GOP. Empty if nothing is cached.
+     */
+    Burst burst(long rewindNanos, long nowNanos) {
+        long cutoff = nowNanos - rewindNanos;
+        int start = -1;
+        int i = 0;
+        for (Entry e : entries) {
+            if (e.keyframe() && (start < 0 || e.addedAt() - cutoff <= 0)) start = i;
+            i++;
+        }
+        if (start < 0) return new Burst(List.of(), false);
+        List<FrameBufferPool.Frame> frames = new ArrayList<>(entries.size() - start);
+        i = 0;
+        for (Entry e : entries) {
+            if (i++ >= start) frames.add(e.frame().retain());
+        }
+        return new Burst(frames, !truncated);
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    int frames() {
+        return entries.size();
+    }
+
+    void clear() {
+        entries.forEach(e -> e.frame().release());
+        entries.clear();
+        bytes = 0;
+        keyframes = 0;
+        truncated = false;
+    }
+
+    /** Drops GOPs that a newer IDR, itself older than the window, makes unnecessary. */
+    private void evictExpired(long nowNanos) {
+        long cutoff = nowNanos - windowNanos;
+        while (keyframes > 1) {
+            Entry next = secondKeyframe();
+            if (next.addedAt() - cutoff > 0) return;
+            evictOldestGop();
+        }
+    }
+
+    private Entry secondKeyframe() {
+        Iterator<Entry> it = entries.iterator();
+        it.next();
+        while (true) {
+            Entry e = it.next();
+            if (e.keyframe()) return e;
+        }
+    }
+
+    private void evictOldestGop() {
+        do {
+            Entry e = entries.removeFirst();
+            bytes -= e.size();
+            e.frame().release();
+            if (e.keyframe()) keyframes--;
+        } while (!entries.isEmpty() && !entries.peekFirst().keyframe());
+    }
+}
@@ -5,36 +5,61 @@ import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
 import org.bytedeco.ffmpeg.avcodec.AVPacket;
 import org.bytedeco.ffmpeg.avutil.AVDictionary;
 import org.bytedeco.ffmpeg.avutil.AVFrame;
-import org.bytedeco.ffmpeg.swscale.SwsContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferInt;
 import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static org.bytedeco.ffmpeg.global.avcodec.*;
 import static org.bytedeco.ffmpeg.global.avutil.*;
-import static org.bytedeco.ffmpeg.global.swscale.*;
 
 public class H264EncoderService {
 
     private static final Logger log = LoggerFactory.getLogger(H264EncoderService.class);
 
+    /** Quality ladder, best first: CRF for libx264, target bitrate for other encoders. */
+    private static final int[] CRF_LADDER = {28, 32, 36, 40};
+    private static final long[] BITRATE_LADDER = {400_000L, 250_000L, 150_000L, 90_000L};
+    /** Bitrates are for 720p; other sizes scale them by pixel count. */
+    private static final long BITRATE_REFERENCE_PIXELS = 1280L * 720;
+    public static final int QUALITY_LEVELS = CRF_LADDER.length;
+
+    /** Joins and drop recovery force IDRs on demand, so the regular GOP can be long. */
+    private static final int GOP_SECONDS = 10;
+    private static final long MIN_FORCED_KEYFRAME_INTERVAL_MS = 1000;
+
+    /** Wire header ahead of each frame's AVCC payload: keyframe flag, then a 32-bit timestamp. */
+    public static final int FRAME_HEADER_BYTES = 5;
+    private static final int IDLE_FRAME_BUFFERS = 8;
+
+    private final FrameBufferPool framePool = new FrameBufferPool(IDLE_FRAME_BUFFERS);
+    private final PipelineMetrics.RenditionMetrics metrics;
+
     private AVCodecContext codecCtx;
-    private SwsContext swsCtx;
-    private AVFrame rgbFrame;
-    private AVFrame yuvFrame;
     private AVPacket packet;
     private long startTime;
     private boolean lastFrameWasKeyframe;
     private byte[] codecConfig;
+    private volatile long keyframeIntervalMs;
+    private volatile long lastKeyframeTime;
+    private volatile boolean deltaSinceKeyframe;
+    private volatile boolean keyframeRequested;
+    private boolean isLibx264;
+    private double bitrateScale;
+    private volatile int qualityLevel;
+    private int appliedQualityLevel;
+
+    public H264EncoderService(PipelineMetrics.RenditionMetrics metrics) {
+        this.metrics = metrics;
+    }
 
-    public synchronized void start(int width, int height, int fps) {
+    /** {@code preset} is an x264 preset name; other encoders ignore it. */
+    public synchronized void start(int width, int height, int fps, String preset) {
         AVCodec codec = avcodec_find_encoder_by_name("libx264");
-        boolean isLibx264 = codec != null && !codec.isNull();
+        isLibx264 = codec != null && !codec.isNull();
 
         if (!isLibx264) {
             codec = avcodec_find_encoder_by_name("libopenh264");
@@ -49,26 +74,28 @@ public class H264EncoderService {
         String codecName = codec.name().getString();
         log.info("Using H.264 encoder: {}", codecName);
 
+        bitrateScale = (double) width * height / BITRATE_REFERENCE_PIXELS;
         codecCtx = avcodec_alloc_context3(codec);
         codecCtx.width(width);
         codecCtx.height(height);
         codecCtx.time_base(av_make_q(1, fps));
         codecCtx.framerate(av_make_q(fps, 1));
         codecCtx.pix_fmt(AV_PIX_FMT_YUV420P);
-        codecCtx.gop_size(fps * 2);
+        codecCtx.gop_size(fps * GOP_SECONDS);
         codecCtx.max_b_frames(0);
         codecCtx.flags(codecCtx.flags() | AV_CODEC_FLAG_GLOBAL_HEADER);
 
         AVDictionary opts = new AVDictionary(null);
 
         if (isLibx264) {
-            av_dict_set(opts, "preset", "ultrafast", 0);
+            av_dict_set(opts, "preset", preset, 0);
             av_dict_set(opts, "tune", "zerolatency", 0);
-            av_dict_set(opts, "crf", "28", 0);
+            av_dict_set(opts, "crf", String.valueOf(CRF_LADDER[0]), 0);
             av_dict_set(opts, "profile", "baseline", 0);
+            av_dict_set(opts, "forced-idr", "1", 0);
         } else {
             codecCtx.profile(66);
-            codecCtx.bit_rate(400_000L);
+            codecCtx.bit_rate(bitrate(0));
             av_dict_set(opts, "allow_skip_frames", "1", 0);
         }
 
@@ -84,53 +111,41 @@ public class H264EncoderService {
             codecConfig = ensureAvcc(raw, width, height);
         }
 
-        swsCtx = sws_getContext(
-                width, height, AV_PIX_FMT_BGRA,
-                width, height, AV_PIX_FMT_YUV420P,
-                SWS_BILINEAR, null, null, (double[]) null);
-
-        rgbFrame = av_frame_alloc();
-        rgbFrame.format(AV_PIX_FMT_BGRA);
-        rgbFrame.width(width);
-        rgbFrame.height(height);
-        av_frame_get_buffer(rgbFrame, 32);
-
-        yuvFrame = av_frame_alloc();
-        yuvFrame.format(AV_PIX_FMT_YUV420P);
-        yuvFrame.width(width);
-        yuvFrame.height(height);
-        av_frame_get_buffer(yuvFrame, 32);
-
         packet = av_packet_alloc();
         startTime = System.currentTimeMillis();
-
-        log.info("H.264 encoder started – {}x{} @ {} FPS, extradata {} bytes",
-                width, height, fps, codecConfig != null ? codecConfig.length : 0);
+        keyframeIntervalMs = codecCtx.gop_size() * 1000L / fps;
+        lastKeyframeTime = startTime;
+        deltaSinceKeyframe = false;
+        keyframeRequested = false;
+        qualityLevel = 0;
+        appliedQualityLevel = 0;
+
+        log.info("H.264 encoder started – {}x{} @ {} FPS, preset {}, extradata {} bytes",
+                width, height, fps, preset, codecConfig != null ? codecConfig.length : 0);
     }
 
-    public synchronized byte[] encode(BufferedImage image) {
-        if (codecCtx == null) return null;
-
-        int w = image.getWidth();
-        int h = image.getHeight();
+    /**
+     * Encodes {@code yuv}, a YUV420P picture at this encoder's resolution;
+     * the caller may reuse it once this returns.
+     * <p>
+     * Returns the framed packet (header plus AVCC payload, flipped) in a pooled
+     * buffer the caller must release, or {@code null} if the encoder produced
+     * no packet.
+     */
+    public synchronized FrameBufferPool.Frame encode(AVFrame yuv) {
+        if (codecCtx == null || yuv == null) return null;
 
-        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
-        ByteBuffer buf = rgbFrame.data(0).capacity((long) w * h * 4).asByteBuffer();
-        for (int i = 0; i < pixels.length; i++) {
-            int px = pixels[i];
-            buf.put(i * 4,     (byte) (px & 0xFF));
-            buf.put(i * 4 + 1, (byte) ((px >> 8) & 0xFF));
-            buf.put(i * 4 + 2, (byte) ((px >> 16) & 0xFF));
-            buf.put(i * 4 + 3, (byte) 0xFF);
+        int level = qualityLevel;
+        if (level != appliedQualityLevel) {
+            applyQualityLevel(level);
         }
 
-        sws_scale(swsCtx,
-                rgbFrame.data(), rgbFrame.linesize(), 0, h,
-                yuvFrame.data(), yuvFrame.linesize());
-
-        yuvFrame.pts((System.currentTimeMillis() - startTime) * 90);
+        long now = System.currentTimeMillis();
+        yuv.pict_type(isKeyframeDue(now) ? AV_PICTURE_TYPE_I : AV_PICTURE_TYPE_NONE);
+        yuv.pts((now - startTime) * 90);
 
-        int ret = avcodec_send_frame(codecCtx, yuvFrame);
+        long t0 = System.nanoTime();
+        int ret = avcodec_send_frame(codecCtx, yuv);
         if (ret < 0) {
             log.warn("avcodec_send_frame failed: {}", ret);
             return null;
@@ -144,13 +159,84 @@ public class H264EncoderService {
             log.warn("avcodec_receive_packet failed: {}", ret);
             return null;
         }
+        long t1 = System.nanoTime();
+        metrics.encode.record(t1 - t0, TimeUnit.NANOSECONDS);
 
         lastFrameWasKeyframe = (packet.flags() & AV_PKT_FLAG_KEY) != 0;
-        byte[] raw = new byte[packet.size()];
-        packet.data().get(raw);
+        if (lastFrameWasKeyframe) {
+            lastKeyframeTime = now;
+            deltaSinceKeyframe = false;
+            keyframeRequested = false;
+            metrics.keyframes.increment();
+        } else {
+            deltaSinceKeyframe = true;
+        }
+        int size = packet.size();
+        // Start codes of 3 bytes grow to 4-byte lengths: at most one extra byte per 4 input bytes.
+        FrameBufferPool.Frame frame = framePool.acquire(FRAME_HEADER_BYTES + size + size / 4 + 4);
+        ByteBuffer out = frame.buffer();
+        out.put((byte) (lastFrameWasKeyframe ? 1 : 0));
+        out.putInt((int) (now - startTime));
+        annexBToAvcc(packet.data().capacity(size).asByteBuffer(), size, out);
+        out.flip();
         av_packet_unref(packet);
+        metrics.nalRewrite.record(System.nanoTime() - t1, TimeUnit.NANOSECONDS);
+        metrics.encodedBytes.record(out.limit());
+        return frame;
+    }
+
+    /**
+     * Asks for the next frame to be an IDR, for a viewer that joined or lost a
+     * frame. Requests coalesce: any number made before the next keyframe
+     * produce one IDR, and forced IDRs are spaced at least
+     * {@value #MIN_FORCED_KEYFRAME_INTERVAL_MS} ms apart.
+     */
+    public void requestKeyframe() {
+        keyframeRequested = true;
+    }
+
+    /**
+     * Whether the next frame will be forced to an IDR: a request is pending,
+     * or deltas have been sent for a GOP interval of wall time. The GOP is
+     * counted in encoded frames, which stall while the app is static, so the
+     * second case makes the cached keyframe catch up when the screen settles.
+     */
+    public boolean isKeyframeDue() {
+        return isKeyframeDue(System.currentTimeMillis());
+    }
+
+    private boolean isKeyframeDue(long now) {
+        long sinceKeyframe = now - lastKeyframeTime;
+        return (keyframeRequested && sinceKeyframe >= MIN_FORCED_KEYFRAME_INTERVAL_MS)
+                || (deltaSinceKeyframe && sinceKeyframe >= keyframeIntervalMs);
+    }
+
+    /**
+     * Moves the encoder along its quality ladder (0 = best). Takes effect on the
+     * next frame: libx264 reconfigures CRF in place; other encoders get a new
+     * target bitrate, which they may only honour at the next keyframe.
+     */
+    public void setQualityLevel(int level) {
+        qualityLevel = Math.max(0, Math.min(QUALITY_LEVELS - 1, level));
+    }
+
+    public int getQualityLevel() {
+        return qualityLevel;
+    }
+
+    private void applyQualityLevel(int level) {
+        if (isLibx264) {
+            av_opt_set(codecCtx.priv_data(), "crf", String.valueOf(CRF_LADDER[level]), 0);
+        } else {
+            codecCtx.bit_rate(bitrate(level));
+        }
+        log.info("Encoder quality level {} -> {} ({})", appliedQualityLevel, level,
+                isLibx264 ? "crf " + CRF_LADDER[level] : bitrate(level) / 1000 + " kbps");
+        appliedQualityLevel = level;
+    }
 
-        return annexBToAvccPacket(raw);
+    private long bitrate(int level) {
+        return (long) (BITRATE_LADDER[level] * bitrateScale);
     }
 
     public boolean isLastFrameKeyframe() {
@@ -161,42 +247,89 @@ public class H264EncoderService {
         return codecConfig;
     }
 
+    public FrameBufferPool.Stats getFramePoolStats() {
+        return framePool.getStats();
+    }
+
+    /** Wall-clock time frame timestamps count from: a frame stamped {@code t} was encoded at this plus {@code t}. */
+    public long getStartTimeMillis() {
+        return startTime;
+    }
+
     public long getTimestamp() {
         return System.currentTimeMillis() - startTime;
     }
 
     /**
-     * Converts Annex B NAL units (start-code-prefixed) to AVCC format
-     * (4-byte length-prefixed) for WebCodecs compatibility.
+     * Rewrites an Annex B access unit (start-code-prefixed NAL units) into
+     * AVCC (4-byte length-prefixed) for WebCodecs, dropping in-band SPS/PPS,
+     * which travel in the codec config instead. Reads {@code src} in place,
+     * typically the packet's native memory, and copies each NAL straight to
+     * {@code out}; input without start codes is copied through unchanged.
+     * Returns the number of bytes written.
      */
-    private byte[] annexBToAvccPacket(byte[] annexB) {
-        List<byte[]> nals = parseAnnexBNals(annexB);
-        if (nals.isEmpty()) return annexB;
+    static int annexBToAvcc(ByteBuffer src, int length, ByteBuffer out) {
+        int written = out.position();
+        int startCode = findStartCode(src, 0, length);
+        if (startCode < 0) {
+            copy(src, 0, length, out);
+            return length;
+        }
+        while (startCode >= 0) {
+            int nalStart = startCode + (src.get(startCode + 2) == 1 ? 3 : 4);
+            int next = findStartCode(src, nalStart, length);
+            int nalLength = (next < 0 ? length : next) - nalStart;
+            if (nalLength > 0) {
+                int nalType = src.get(nalStart) & 0x1F;
+                if (nalType != 7 && nalType != 8) {
+                    out.putInt(nalLength);
+                    copy(src, nalStart, nalLength, out);
+                }
+            }
+            startCode = next;
+        }
+        return out.position() - written;
+    }
 
-        var out = new ByteArrayOutputStream(annexB.length);
-        for (byte[] nal : nals) {
-            int nalType = nal[0] & 0x1F;
-            if (nalType == 7 || nalType == 8) continue; // skip SPS/PPS in stream data
-            out.write((nal.length >> 24) & 0xFF);
-            out.write((nal.length >> 16) & 0xFF);
-            out.write((nal.length >> 8) & 0xFF);
-            out.write(nal.length & 0xFF);
-            out.write(nal, 0, nal.length);
+    /**
+     * Position of the next 00 00 01 or 00 00 00 01 at or after {@code from},
+     * or -1. A third byte above 1 rules out a start code beginning at any of
+     * the three positions it covers, so the scan mostly advances three bytes
+     * at a time.
+     */
+    private static int findStartCode(ByteBuffer buf, int from, int end) {
+        int i = from;
+        while (i + 2 < end) {
+            int third = buf.get(i + 2) & 0xFF;
+            if (third > 1) {
+                i += 3;
+                continue;
+            }
+            if (buf.get(i) == 0 && buf.get(i + 1) == 0
+                    && (third == 1 || (i + 3 < end && buf.get(i + 3) == 1))) {
+                return i;
+            }
+            i++;
         }
-        return out.toByteArray();
+        return -1;
+    }
+
+    private static void copy(ByteBuffer src, int offset, int length, ByteBuffer out) {
+        out.put(out.position(), src, offset, length);
+        out.position(out.position() + length);
     }
 
     /**
      * Converts Annex B formatted SPS+PPS to AVCDecoderConfigurationRecord if needed.
      * WebCodecs requires AVCC format for the description parameter.
      */
-    private byte[] ensureAvcc(byte[] extradata, int width, int height) {
+    static byte[] ensureAvcc(byte[] extradata, int width, int height) {
         if (extradata.length > 0 && extradata[0] == 0x01) {
             log.info("Extradata already in AVCC format ({} bytes)", extradata.length);
             return extradata;
         }
 
-        List<byte[]> nalUnits = parseAnnexBNals(extradata);
+        List<byte[]> nalUnits = parseAnnexBNals(extradata, extradata.length);
         byte[] sps = null;
         byte[] pps = null;
 
@@ -238,13 +371,13 @@ public class H264EncoderService {
         return avcc;
     }
 
-    private List<byte[]> parseAnnexBNals(byte[] data) {
+    static List<byte[]> parseAnnexBNals(byte[] data, int length) {
         List<byte[]> nals = new ArrayList<>();
         int i = 0;
-        while (i < data.length) {
+        while (i < length) {
             // skip to start code
-            if (i + 2 < data.length && data[i] == 0 && data[i + 1] == 0) {
-                if (i + 3 < data.length && data[i + 2] == 0 && data[i + 3] == 1) {
+            if (i + 2 < length && data[i] == 0 && data[i + 1] == 0) {
+                if (i + 3 < length && data[i + 2] == 0 && data[i + 3] == 1) {
                     i += 4;
                 } else if (data[i + 2] == 1) {
                     i += 3;
@@ -253,9 +386,9 @@ public class H264EncoderService {
                     continue;
                 }
                 int start = i;
-                while (i < data.length) {
-                    if (i + 2 < data.length && data[i] == 0 && data[i + 1] == 0
-                            && (data[i + 2] == 1 || (i + 3 < data.length && data[i + 2] == 0 && data[i + 3] == 1))) {
+                while (i < length) {
+                    if (i + 2 < length && data[i] == 0 && data[i + 1] == 0
+                            && (data[i + 2] == 1 || (i + 3 < length && data[i + 2] == 0 && data[i + 3] == 1))) {
                         break;
                     }
                     i++;
@@ -279,18 +412,6 @@ public class H264EncoderService {
             avcodec_free_context(codecCtx);
             codecCtx = null;
         }
-        if (swsCtx != null) {
-            sws_freeContext(swsCtx);
-            swsCtx = null;
-        }
-        if (rgbFrame != null) {
-            av_frame_free(rgbFrame);
-            rgbFrame = null;
-        }
-        if (yuvFrame != null) {
-            av_frame_free(yuvFrame);
-            yuvFrame = null;
-        }
         if (packet != null) {
             av_packet_free(packet);
             packet = null;
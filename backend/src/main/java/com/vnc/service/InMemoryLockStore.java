@@ -0,0 +1,48 @@
+package com.vnc.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Locks held in this process; the default store. */
+final class InMemoryLockStore implements LockStore {
+
+    /** {@code lease} is the latest grant, null once released; {@code lastToken} outlives it. */
+    private static final class Entry {
+        Lease lease;
+        long lastToken;
+    }
+
+    private final Map<String, Entry> entries = new HashMap<>(); // guarded by this
+
+    @Override
+    public synchronized Lease acquire(String lock, String owner, long ttlMillis) {
+        long now = System.currentTimeMillis();
+        Entry e = entries.computeIfAbsent(lock, k -> new Entry());
+        if (e.lease != null && e.lease.isLiveAt(now)) return null;
+        e.lease = new Lease(owner, ++e.lastToken, now + ttlMillis);
+        return e.lease;
+    }
+
+    @Override
+    public synchronized Lease renew(String lock, long token, long ttlMillis) {
+        Entry e = entries.get(lock);
+        if (e == null || e.lease == null || e.lease.token() != token) return null;
+        e.lease = new Lease(e.lease.owner(), token, System.currentTimeMillis() + ttlMillis);
+        return e.lease;
+    }
+
+    @Override
+    public synchronized void release(String lock, long token) {
+        Entry e = entries.get(lock);
+        if (e != null && e.lease != null && e.lease.token() == token) {
+            e.lease = null;
+        }
+    }
+
+    @Override
+    public synchronized Lease current(String lock) {
+        Entry e = entries.get(lock);
+        if (e == null || e.lease == null || !e.lease.isLiveAt(System.currentTimeMillis())) return null;
+        return e.lease;
+    }
+}
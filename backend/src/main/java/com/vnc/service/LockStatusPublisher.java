@@ -0,0 +1,99 @@
+package com.vnc.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.vnc.model.LockStatusMessage;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Fans an app's lock status out to its viewers. Each state change encodes
+ * the two messages a viewer can get, "you hold it" and "someone else holds
+ * it" (just one when unlocked), and hands the matching one to every viewer's
+ * send queue, where it replaces a status that has not been sent yet.
+ *
+ * <p>Fan-out runs on a virtual thread and reads the lock state when it runs,
+ * so changes that arrive while one is pending collapse into it. Fan-outs are
+ * serialized, so the last status a viewer is offered is always the newest.
+ *
+ * <p>{@code controller} reads the current holder: the app's lock on a node
+ * that owns the app, or the last state the origin sent on a relay.
+ */
+public class LockStatusPublisher {
+
+    private final Supplier<String> controller;
+    private final List<BroadcastService> broadcasts;
+    private final ObjectMapper objectMapper;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final AtomicBoolean pending = new AtomicBoolean();
+
+    public LockStatusPublisher(Supplier<String> controller, List<BroadcastService> broadcasts, ObjectMapper objectMapper) {
+        this.controller = controller;
+        this.broadcasts = broadcasts;
+        this.objectMapper = objectMapper;
+    }
+
+    /** Schedules a fan-out of the current status, unless one is already pending. */
+    public void publish() {
+        if (pending.compareAndSet(false, true)) {
+            executor.execute(this::fanOut);
+        }
+    }
+
+    /** Offers the current status to one viewer, e.g. when it joins. */
+    public synchronized void sendTo(String sessionId) {
+        LockStatus status = encode();
+        for (BroadcastService b : broadcasts) {
+            b.offerLockStatus(sessionId, status);
+        }
+    }
+
+    private synchronized void fanOut() {
+        // Cleared before reading the state: a change after this point schedules another run.
+        pending.set(false);
+        LockStatus status = encode();
+        for (BroadcastService b : broadcasts) {
+            b.offerLockStatus(status);
+        }
+    }
+
+    private LockStatus encode() {
+        String controller = this.controller.get();
+        boolean locked = controller != null;
+        LockStatusMessage other = LockStatusMessage.of(locked, false);
+        LockStatusMessage you = LockStatusMessage.of(true, true);
+        return new LockStatus(controller,
+                json(other), locked ? json(you) : null,
+                other.toBinary(), you.toBinary());
+    }
+
+    private TextMessage json(LockStatusMessage message) {
+        try {
+            return new TextMessage(objectMapper.writeValueAsString(message));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** One state's pre-encoded payloads; {@code controllerId} gets the "you" variant. */
+    record LockStatus(String controllerId, TextMessage jsonOther, TextMessage jsonYou,
+                      byte[] binaryOther, byte[] binaryYou) {
+
+        WebSocketMessage<?> messageFor(String sessionId, boolean binary) {
+            boolean you = sessionId.equals(controllerId);
+            if (binary) {
+                // A view per viewer, as for queued frames (see BroadcastService.Pending).
+                return new BinaryMessage(ByteBuffer.wrap(you ? binaryYou : binaryOther).asReadOnlyBuffer());
+            }
+            return you ? jsonYou : jsonOther;
+        }
+    }
+}
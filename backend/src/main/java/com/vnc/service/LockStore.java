@@ -0,0 +1,37 @@
+package com.vnc.service;
+
+import java.io.IOException;
+
+/**
+ * Where control locks live, as leases. A lease is granted for a TTL and
+ * must be renewed before it runs out; once it has, anyone may take the lock.
+ * Every grant of a lock gets a larger fencing token than the grant before
+ * it, so work stamped with an old token can be told apart from the current
+ * holder's. Nodes that share a store share the locks of apps with the same
+ * id.
+ *
+ * <p>{@link InMemoryLockStore} keeps the locks of one node and is the
+ * default; {@link FileLockStore} shares them through a directory.
+ */
+public interface LockStore {
+
+    /** {@code owner} holds the lock until {@code expiresAtMillis} (wall clock). */
+    record Lease(String owner, long token, long expiresAtMillis) {
+
+        boolean isLiveAt(long nowMillis) {
+            return nowMillis < expiresAtMillis;
+        }
+    }
+
+    /** Grants {@code owner} the lock if it is free or its lease has run out; returns the new lease, or null if it is held. */
+    Lease acquire(String lock, String owner, long ttlMillis) throws IOException;
+
+    /** Extends the lease with {@code token} if it is still the latest grant; returns it, or null if the lock has moved on. */
+    Lease renew(String lock, long token, long ttlMillis) throws IOException;
+
+    /** Frees the lock if {@code token} still holds it. */
+    void release(String lock, long token) throws IOException;
+
+    /** The live lease on the lock, or null if it is free. */
+    Lease current(String lock) throws IOException;
+}
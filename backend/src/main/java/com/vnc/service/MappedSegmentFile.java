@@ -0,0 +1,125 @@
+package com.vnc.service;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An append-only file written through memory-mapped windows. Bytes go to
+ * {@code <name>.part}, mapped a window at a time, and
+ * {@link #finish()} trims the mapped slack and renames it, so a crash leaves
+ * a {@code .part} file rather than a truncated segment under the final name.
+ * Not thread-safe; the recorder's writer thread owns it.
+ *
+ * <p>Windows stay mapped until the file is finished or closed, which forces
+ * each one and then unmaps it before trimming: a mapping is otherwise only
+ * released when its buffer is collected, and truncating a file under a live
+ * mapping fails on some platforms and faults on access on others.
+ */
+final class MappedSegmentFile implements AutoCloseable {
+
+    static final int MEDIA_WINDOW_BYTES = 8 << 20;
+    static final int INDEX_WINDOW_BYTES = 64 << 10;
+
+    /** {@code sun.misc.Unsafe.invokeCleaner}, the one way to unmap a buffer before it is collected. */
+    private static final MethodHandle INVOKE_CLEANER;
+
+    static {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            INVOKE_CLEANER = MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Path target;
+    private final Path part;
+    private final FileChannel channel;
+    private final int windowBytes;
+    private final List<MappedByteBuffer> windows = new ArrayList<>();
+    private MappedByteBuffer window;
+    private long size;
+
+    MappedSegmentFile(Path target, int windowBytes) throws IOException {
+        this.target = target;
+        this.windowBytes = windowBytes;
+        this.part = target.resolveSibling(target.getFileName() + ".part");
+        Files.createDirectories(target.getParent());
+        this.channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /** Appends the remaining bytes of {@code src}, consuming it. */
+    void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            if (window == null || !window.hasRemaining()) {
+                window = channel.map(FileChannel.MapMode.READ_WRITE, size, windowBytes);
+                windows.add(window);
+            }
+            int n = Math.min(src.remaining(), window.remaining());
+            window.put(window.position(), src, src.position(), n);
+            window.position(window.position() + n);
+            src.position(src.position() + n);
+            size += n;
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    Path target() {
+        return target;
+    }
+
+    /** Flushes, trims and moves the file to its final name. */
+    void finish() throws IOException {
+        // FileChannel.force does not cover writes made through a mapping.
+        for (MappedByteBuffer w : windows) {
+            w.force();
+        }
+        unmap();
+        channel.truncate(size);
+        channel.close();
+        Files.move(part, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** Closes without renaming, leaving whatever was written in the {@code .part} file. */
+    @Override
+    public void close() throws IOException {
+        unmap();
+        if (channel.isOpen()) {
+            channel.truncate(size);
+            channel.close();
+        }
+    }
+
+    /** Releases every window now; none may be touched afterwards. */
+    private void unmap() {
+        window = null;
+        for (MappedByteBuffer w : windows) {
+            try {
+                INVOKE_CLEANER.invokeExact((ByteBuffer) w);
+            } catch (Throwable e) {
+                throw new IllegalStateException("Failed to unmap " + part, e);
+            }
+        }
+        windows.clear();
+    }
+}
@@ -0,0 +1,143 @@
+package com.vnc.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Micrometer meters for one app's capture → encode → broadcast path, tagged
+ * with {@code app}. Per-rendition meters add a {@code rendition} tag. Timers
+ * publish percentile histograms, so p99 can be aggregated and alerted on per
+ * app. {@link #close()} removes every meter when the app is deleted.
+ */
+public class PipelineMetrics {
+
+    private final MeterRegistry registry;
+    private final Tags tags;
+    private final List<Meter> meters = new ArrayList<>(); // guarded by this
+
+    final Timer captureCopy;
+    final Timer pack;
+    final Timer convert;
+    final Timer downscale;
+    final Counter inputEvents;
+    final Counter inputCoalesced;
+    final Counter inputDropped;
+    final Counter inputFenced;
+    final DistributionSummary inputBatch;
+
+    public PipelineMetrics(MeterRegistry registry, String appId) {
+        this.registry = registry;
+        this.tags = Tags.of("app", appId);
+        captureCopy = timer("vnc.capture.copy", "Copy of the capture clip from the app's canvas, including any wait for its paint", tags);
+        pack = timer("vnc.capture.pack", "Upload of dirty rows into the native BGR0 frame", tags);
+        convert = timer("vnc.scale.convert", "sws_scale from BGR0 to full-resolution YUV", tags);
+        downscale = timer("vnc.scale.downscale", "sws_scale from full-resolution YUV to a rendition", tags);
+        inputEvents = counter("vnc.input.events", "Input events received from the controller", tags);
+        inputCoalesced = counter("vnc.input.coalesced", "Input events merged into a queued move or wheel event", tags);
+        inputDropped = counter("vnc.input.dropped", "Input events discarded because the input queue was full", tags);
+        inputFenced = counter("vnc.input.fenced", "Input events discarded because their sender no longer held the lock", tags);
+        inputBatch = track(DistributionSummary.builder("vnc.input.batch")
+                .description("Input events applied per EDT task")
+                .tags(tags)
+                .register(registry));
+    }
+
+    public RenditionMetrics forRendition(String name) {
+        return new RenditionMetrics(tags.and("rendition", name));
+    }
+
+    public RecordingMetrics forRecording() {
+        return new RecordingMetrics(tags);
+    }
+
+    /** Unregisters every meter this app created. */
+    public synchronized void close() {
+        meters.forEach(registry::remove);
+        meters.clear();
+    }
+
+    private synchronized <M extends Meter> M track(M meter) {
+        meters.add(meter);
+        return meter;
+    }
+
+    private Timer timer(String name, String description, Tags tags) {
+        return track(Timer.builder(name)
+                .description(description)
+                .tags(tags)
+                .publishPercentileHistogram()
+                .register(registry));
+    }
+
+    private Counter counter(String name, String description, Tags tags) {
+        return track(Counter.builder(name).description(description).tags(tags).register(registry));
+    }
+
+    /** Meters for one rendition's encoder and viewers. */
+    public final class RenditionMetrics {
+        final Timer encode;
+        final Timer nalRewrite;
+        final DistributionSummary encodedBytes;
+        final Counter keyframes;
+        final Counter sends;
+        final Counter drops;
+        final Timer sendLatency;
+        final Timer frameLatency;
+        private final Tags tags;
+
+        private RenditionMetrics(Tags tags) {
+            this.tags = tags;
+            encode = timer("vnc.encode", "avcodec_send_frame and avcodec_receive_packet", tags);
+            nalRewrite = timer("vnc.encode.nal.rewrite", "Annex B to AVCC rewrite of one packet", tags);
+            encodedBytes = track(DistributionSummary.builder("vnc.encode.frame.size")
+                    .description("Encoded frame size")
+                    .baseUnit("bytes")
+                    .tags(tags)
+                    .publishPercentileHistogram()
+                    .register(registry));
+            keyframes = counter("vnc.encode.keyframes", "IDR frames encoded", tags);
+            sends = counter("vnc.broadcast.sends", "Frames written to viewers", tags);
+            drops = counter("vnc.broadcast.drops", "Frames discarded from full viewer send queues", tags);
+            sendLatency = timer("vnc.broadcast.send.latency", "Time from queueing a frame for a viewer to its write completing", tags);
+            frameLatency = timer("vnc.frame.latency", "Time from capture start to the frame's write to a viewer completing", tags);
+        }
+
+        /** Gauges the frames {@code broadcast} holds for joining viewers. */
+        void gopCache(BroadcastService broadcast) {
+            track(Gauge.builder("vnc.gop.cache.bytes", broadcast, BroadcastService::getGopCacheBytes)
+                    .description("Encoded frames held for joining viewers")
+                    .baseUnit("bytes")
+                    .tags(tags)
+                    .register(registry));
+            track(Gauge.builder("vnc.gop.cache.frames", broadcast, BroadcastService::getGopCacheFrames)
+                    .description("Frames held for joining viewers")
+                    .tags(tags)
+                    .register(registry));
+        }
+    }
+
+    /** Meters for the app's stream recorder. */
+    public final class RecordingMetrics {
+        final Counter bytes;
+        final Counter drops;
+        final Counter segments;
+
+        private RecordingMetrics(Tags tags) {
+            bytes = track(Counter.builder("vnc.recording.bytes")
+                    .description("Bytes written to recording segments")
+                    .baseUnit("bytes")
+                    .tags(tags)
+                    .register(registry));
+            drops = counter("vnc.recording.drops", "Frames left out of the recording because its queue was full", tags);
+            segments = counter("vnc.recording.segments", "Recording segment files opened", tags);
+        }
+    }
+}
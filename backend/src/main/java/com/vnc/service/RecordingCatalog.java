@@ -0,0 +1,108 @@
+package com.vnc.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * The finished recording segments of one app, in start order. It is read
+ * from disk once and then kept up to date by the app's recorder, so seeks
+ * never list the directory: finding a segment and then a keyframe in it are
+ * both binary searches.
+ */
+final class RecordingCatalog {
+
+    private static final Logger log = LoggerFactory.getLogger(RecordingCatalog.class);
+
+    /** A segment file and its mapped keyframe index. */
+    record Segment(Path media, RecordingIndex index) {}
+
+    /** A keyframe to start playing from. */
+    record Position(Segment segment, int entry) {}
+
+    private volatile List<Segment> segments; // immutable, replaced on add
+
+    RecordingCatalog(Path directory) {
+        List<Segment> found = new ArrayList<>();
+        if (Files.isDirectory(directory)) {
+            try (Stream<Path> files = Files.list(directory)) {
+                files.filter(f -> f.getFileName().toString().endsWith(RecordingIndex.SUFFIX))
+                        .forEach(f -> {
+                            Segment s = load(f);
+                            if (s != null) found.add(s);
+                        });
+            } catch (IOException e) {
+                log.warn("Failed to list recordings in {}", directory, e);
+            }
+        }
+        found.sort(Comparator.comparingLong(s -> s.index().startEpochMs()));
+        this.segments = List.copyOf(found);
+    }
+
+    /** Adds a segment the recorder has just finished; segments arrive in start order. */
+    synchronized void add(Path indexFile) {
+        Segment s = load(indexFile);
+        if (s == null) return;
+        List<Segment> next = new ArrayList<>(segments);
+        next.add(s);
+        segments = List.copyOf(next);
+    }
+
+    /**
+     * The keyframe at or before {@code epochMs}: in the last segment that
+     * starts by then, or the first segment if none does. Null if nothing has
+     * been recorded.
+     */
+    Position locate(long epochMs) {
+        List<Segment> list = segments;
+        int i = floor(list, epochMs);
+        if (i < 0) return null;
+        Segment s = list.get(i);
+        int entry = s.index().floor(epochMs - s.index().startEpochMs());
+        return entry < 0 ? null : new Position(s, entry);
+    }
+
+    /** The segment that follows {@code current}, or null if none has been finished yet. */
+    Segment next(Segment current) {
+        List<Segment> list = segments;
+        int i = floor(list, current.index().startEpochMs());
+        return i + 1 < list.size() ? list.get(i + 1) : null;
+    }
+
+    /** Index of the last segment starting at or before {@code epochMs}; 0 if none does, -1 if empty. */
+    private static int floor(List<Segment> list, long epochMs) {
+        int lo = 0;
+        int hi = list.size() - 1;
+        int found = list.isEmpty() ? -1 : 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (list.get(mid).index().startEpochMs() <= epochMs) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private static Segment load(Path indexFile) {
+        String name = indexFile.getFileName().toString();
+        Path media = indexFile.resolveSibling(name.substring(0, name.length() - RecordingIndex.SUFFIX.length()) + ".mp4");
+        if (!Files.isRegularFile(media)) return null;
+        try {
+            RecordingIndex index = RecordingIndex.open(indexFile);
+            return index.size() > 0 ? new Segment(media, index) : null;
+        } catch (IOException e) {
+            log.warn("Skipping recording index {}", indexFile, e);
+            return null;
+        }
+    }
+}
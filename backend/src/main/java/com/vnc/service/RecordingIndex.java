@@ -0,0 +1,111 @@
+package com.vnc.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The keyframe index written beside each recording segment. It holds what a
+ * player needs before it touches the media: the segment's wall-clock start,
+ * its codec config, and one entry per keyframe fragment. Entries are
+ * appended in time order, so a seek is a binary search over the mapped file.
+ *
+ * <pre>
+ * header  magic "VIDX":u32  version:u16  width:u16  height:u16  avcCLength:u16
+ *         startEpochMs:u64  avcC                                   20 bytes + avcC
+ * entry   timeMs:u32  moofOffset:u64                              12 bytes
+ * </pre>
+ *
+ * {@code timeMs} is the keyframe's time from the segment start, the decode
+ * time its fragment carries in {@code tfdt}. Big-endian, like the media.
+ */
+final class RecordingIndex {
+
+    static final String SUFFIX = ".idx";
+
+    private static final int MAGIC = 0x56494458; // "VIDX"
+    private static final short VERSION = 1;
+    private static final int HEADER_BYTES = 20;
+    private static final int ENTRY_BYTES = 12;
+
+    private final ByteBuffer buf;
+    private final int entriesStart;
+    private final int size;
+
+    private RecordingIndex(ByteBuffer buf) throws IOException {
+        if (buf.limit() < HEADER_BYTES || buf.getInt(0) != MAGIC || buf.getShort(4) != VERSION) {
+            throw new IOException("Not a recording index");
+        }
+        this.buf = buf;
+        this.entriesStart = HEADER_BYTES + (buf.getShort(10) & 0xFFFF);
+        this.size = (buf.limit() - entriesStart) / ENTRY_BYTES;
+    }
+
+    /** Maps a finished index file. */
+    static RecordingIndex open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mapping outlives the channel.
+            return new RecordingIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    static ByteBuffer header(long startEpochMs, int width, int height, byte[] avcC) {
+        ByteBuffer b = ByteBuffer.allocate(HEADER_BYTES + avcC.length);
+        b.putInt(MAGIC).putShort(VERSION).putShort((short) width).putShort((short) height)
+                .putShort((short) avcC.length).putLong(startEpochMs).put(avcC);
+        return b.flip();
+    }
+
+    static ByteBuffer entry(int timeMs, long moofOffset) {
+        return ByteBuffer.allocate(ENTRY_BYTES).putInt(timeMs).putLong(moofOffset).flip();
+    }
+
+    long startEpochMs() {
+        return buf.getLong(12);
+    }
+
+    int width() {
+        return buf.getShort(6) & 0xFFFF;
+    }
+
+    int height() {
+        return buf.getShort(8) & 0xFFFF;
+    }
+
+    byte[] avcC() {
+        byte[] avcC = new byte[entriesStart - HEADER_BYTES];
+        buf.get(HEADER_BYTES, avcC);
+        return avcC;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int timeMs(int entry) {
+        return buf.getInt(entriesStart + entry * ENTRY_BYTES);
+    }
+
+    long moofOffset(int entry) {
+        return buf.getLong(entriesStart + entry * ENTRY_BYTES + 4);
+    }
+
+    /** The last keyframe at or before {@code timeMs}, the first if there is none; -1 if empty. */
+    int floor(long timeMs) {
+        int lo = 0;
+        int hi = size - 1;
+        int found = size > 0 ? 0 : -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (timeMs(mid) <= timeMs) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+}
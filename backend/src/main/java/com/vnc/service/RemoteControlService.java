@@ -1,6 +1,8 @@
 package com.vnc.service;
 
 import com.vnc.swing.SwingApp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
@@ -9,35 +11,131 @@ import javax.imageio.ImageWriter;
 import javax.imageio.stream.ImageOutputStream;
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * Snapshots and remote input for one app.
+ *
+ * <p>Input is queued per app and applied on the EDT in batches: one EDT
+ * task drains everything queued since the previous one, so a burst of events
+ * costs one hop rather than one per event. While queued, a pointer move
+ * replaces a move right before it and wheel notches add up, so fast pointer
+ * motion or scrolling turns into one event per batch. The queue is bounded;
+ * beyond {@link #MAX_QUEUED} events input is dropped until the EDT catches
+ * up.
+ *
+ * <p>Input is stamped with its sender's fencing token from
+ * {@link ControlLockService} and applied only if that token still holds the
+ * lock when its batch runs. Input queued just before the lock changed hands,
+ * or relayed late from another node, is dropped rather than applied on the
+ * new controller's behalf.
+ */
 public class RemoteControlService {
 
-    private static final int WIDTH = 1280;
-    private static final int HEIGHT = 720;
+    private static final Logger log = LoggerFactory.getLogger(RemoteControlService.class);
+
     private static final float JPEG_QUALITY = 0.6f;
+    private static final int MAX_QUEUED = 256;
+    private static final long MULTI_CLICK_MILLIS = 500;
+    /** Lines scrolled per wheel notch, as on a desktop. */
+    private static final int WHEEL_SCROLL_AMOUNT = 3;
+
+    /** Bits of the protocol's {@code mods} field. */
+    public static final int MOD_SHIFT = 1;
+    public static final int MOD_CTRL = 2;
+    public static final int MOD_ALT = 4;
+    public static final int MOD_META = 8;
+
+    /** Browser {@code KeyboardEvent.key} names of keys that type no character. */
+    private static final Map<String, Integer> NAMED_KEYS = Map.ofEntries(
+            Map.entry("Enter", KeyEvent.VK_ENTER),
+            Map.entry("Tab", KeyEvent.VK_TAB),
+            Map.entry("Backspace", KeyEvent.VK_BACK_SPACE),
+            Map.entry("Delete", KeyEvent.VK_DELETE),
+            Map.entry("Escape", KeyEvent.VK_ESCAPE),
+            Map.entry("ArrowLeft", KeyEvent.VK_LEFT),
+            Map.entry("ArrowRight", KeyEvent.VK_RIGHT),
+            Map.entry("ArrowUp", KeyEvent.VK_UP),
+            Map.entry("ArrowDown", KeyEvent.VK_DOWN),
+            Map.entry("Home", KeyEvent.VK_HOME),
+            Map.entry("End", KeyEvent.VK_END),
+            Map.entry("PageUp", KeyEvent.VK_PAGE_UP),
+            Map.entry("PageDown", KeyEvent.VK_PAGE_DOWN),
+            Map.entry("Insert", KeyEvent.VK_INSERT),
+            Map.entry("Shift", KeyEvent.VK_SHIFT),
+            Map.entry("Control", KeyEvent.VK_CONTROL),
+            Map.entry("Alt", KeyEvent.VK_ALT),
+            Map.entry("Meta", KeyEvent.VK_META),
+            Map.entry("CapsLock", KeyEvent.VK_CAPS_LOCK),
+            Map.entry("F1", KeyEvent.VK_F1), Map.entry("F2", KeyEvent.VK_F2),
+            Map.entry("F3", KeyEvent.VK_F3), Map.entry("F4", KeyEvent.VK_F4),
+            Map.entry("F5", KeyEvent.VK_F5), Map.entry("F6", KeyEvent.VK_F6),
+            Map.entry("F7", KeyEvent.VK_F7), Map.entry("F8", KeyEvent.VK_F8),
+            Map.entry("F9", KeyEvent.VK_F9), Map.entry("F10", KeyEvent.VK_F10),
+            Map.entry("F11", KeyEvent.VK_F11), Map.entry("F12", KeyEvent.VK_F12));
+
+    /** Control characters the named keys type, as a desktop JVM reports them. */
+    private static final Map<String, Character> NAMED_KEY_CHARS = Map.of(
+            "Enter", '\n', "Tab", '\t', "Backspace", '\b', "Delete", (char) 0x7F, "Escape", (char) 0x1B);
+
+    /** One input event, in full-resolution content-pane coordinates. */
+    public sealed interface Input {}
+
+    public record MouseMove(int x, int y, int mods) implements Input {}
+
+    /** {@code button} is the browser's: 0 = left, 1 = middle, 2 = right. */
+    public record MouseButton(int x, int y, int button, boolean down, int mods) implements Input {}
+
+    /** {@code rotation} is in notches, positive scrolling down. */
+    public record Wheel(int x, int y, int rotation, int mods) implements Input {}
+
+    /** {@code key} is the browser's {@code KeyboardEvent.key}: a character or a key name. */
+    public record Key(String key, boolean down, int mods) implements Input {}
+
+    private record Fenced(Input input, long token) {}
 
     private final SwingApp swingApp;
+    private final ControlLockService controlLock;
+    private final PipelineMetrics metrics;
+
+    private final ArrayDeque<Fenced> queue = new ArrayDeque<>(); // guarded by itself
+    private boolean drainScheduled;                              // guarded by queue
+
+    // EDT only: pointer state carried between batches.
+    private Component pressTarget;
+    private Component hoverTarget;
+    private int heldButtons;
+    private int clickCount;
+    private int lastClickButton;
+    private long lastClickAt;
+    private long lastToken;
 
-    public RemoteControlService(SwingApp swingApp) {
+    public RemoteControlService(SwingApp swingApp, ControlLockService controlLock, PipelineMetrics metrics) {
         this.swingApp = swingApp;
+        this.controlLock = controlLock;
+        this.metrics = metrics;
     }
 
     public byte[] getSnapshot() {
-        JFrame frame = swingApp.getFrame();
-        if (frame == null) {
+        if (swingApp.getContentPane() == null) {
             return new byte[0];
         }
-        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        BufferedImage image = new BufferedImage(swingApp.getWidth(), swingApp.getHeight(), BufferedImage.TYPE_INT_RGB);
         try {
-            SwingUtilities.invokeAndWait(() -> {
+            swingApp.invokeAndWait(() -> {
                 Graphics2D g = image.createGraphics();
-                frame.getContentPane().paint(g);
+                swingApp.paint(g);
                 g.dispose();
             });
         } catch (InterruptedException e) {
@@ -68,47 +166,219 @@ public class RemoteControlService {
         return baos.toByteArray();
     }
 
-    public void click(int x, int y) {
-        SwingUtilities.invokeLater(() -> {
-            JFrame frame = swingApp.getFrame();
-            if (frame == null) return;
-
-            Container contentPane = frame.getContentPane();
-            Component target = SwingUtilities.getDeepestComponentAt(contentPane, x, y);
-            if (target == null) target = contentPane;
-
-            Point local = SwingUtilities.convertPoint(contentPane, x, y, target);
-            long now = System.currentTimeMillis();
-
-            target.dispatchEvent(new MouseEvent(
-                    target, MouseEvent.MOUSE_PRESSED, now, 0,
-                    local.x, local.y, 1, false, MouseEvent.BUTTON1));
-            target.dispatchEvent(new MouseEvent(
-                    target, MouseEvent.MOUSE_RELEASED, now, 0,
-                    local.x, local.y, 1, false, MouseEvent.BUTTON1));
-            target.dispatchEvent(new MouseEvent(
-                    target, MouseEvent.MOUSE_CLICKED, now, 0,
-                    local.x, local.y, 1, false, MouseEvent.BUTTON1));
-        });
-    }
-
-    public void press(char key) {
-        SwingUtilities.invokeLater(() -> {
-            JFrame frame = swingApp.getFrame();
-            if (frame == null) return;
-
-            Component target = frame.getFocusOwner();
-            if (target == null) target = frame.getContentPane();
-
-            long now = System.currentTimeMillis();
-            int keyCode = KeyEvent.getExtendedKeyCodeForChar(key);
-
-            target.dispatchEvent(new KeyEvent(
-                    target, KeyEvent.KEY_PRESSED, now, 0, keyCode, key));
-            target.dispatchEvent(new KeyEvent(
-                    target, KeyEvent.KEY_TYPED, now, 0, KeyEvent.VK_UNDEFINED, key));
-            target.dispatchEvent(new KeyEvent(
-                    target, KeyEvent.KEY_RELEASED, now, 0, keyCode, key));
-        });
+    /** A press and release of the left button; the text protocol's {@code click}. */
+    public void click(int x, int y, long token) {
+        submit(new MouseButton(x, y, 0, true, 0), token);
+        submit(new MouseButton(x, y, 0, false, 0), token);
+    }
+
+    /** A key down and up that types {@code key}; the text protocol's {@code key}. */
+    public void press(char key, long token) {
+        String k = String.valueOf(key);
+        submit(new Key(k, true, 0), token);
+        submit(new Key(k, false, 0), token);
+    }
+
+    /**
+     * Queues {@code input} from the holder of {@code token} for the app's UI
+     * thread, coalescing it with the event before it.
+     */
+    public void submit(Input input, long token) {
+        metrics.inputEvents.increment();
+        synchronized (queue) {
+            Fenced last = queue.peekLast();
+            Input prevInput = last != null && last.token() == token ? last.input() : null;
+            if (input instanceof MouseMove move && prevInput instanceof MouseMove prev && prev.mods() == move.mods()) {
+                queue.pollLast();
+                metrics.inputCoalesced.increment();
+            } else if (input instanceof Wheel wheel && prevInput instanceof Wheel prev && prev.mods() == wheel.mods()) {
+                queue.pollLast();
+                input = new Wheel(wheel.x(), wheel.y(), prev.rotation() + wheel.rotation(), wheel.mods());
+                metrics.inputCoalesced.increment();
+            } else if (queue.size() >= MAX_QUEUED) {
+                metrics.inputDropped.increment();
+                return;
+            }
+            queue.addLast(new Fenced(input, token));
+            if (drainScheduled) return;
+            drainScheduled = true;
+        }
+        if (!swingApp.invokeLater(this::drain)) {
+            // Not running: there is nothing to deliver the input to.
+            synchronized (queue) {
+                queue.clear();
+                drainScheduled = false;
+            }
+        }
+    }
+
+    private void drain() {
+        List<Fenced> batch;
+        synchronized (queue) {
+            batch = new ArrayList<>(queue);
+            queue.clear();
+            drainScheduled = false;
+        }
+        metrics.inputBatch.record(batch.size());
+        Container content = swingApp.getContentPane();
+        if (content == null) return;
+        if (pressTarget != null && !pressTarget.isShowing()) {
+            // The UI was rebuilt since the press; its buttons cannot still be held.
+            pressTarget = null;
+            hoverTarget = null;
+            heldButtons = 0;
+        }
+        for (Fenced fenced : batch) {
+            if (!controlLock.isCurrent(fenced.token())) {
+                metrics.inputFenced.increment();
+                continue;
+            }
+            if (fenced.token() != lastToken) {
+                // A new controller starts with no buttons held.
+                lastToken = fenced.token();
+                pressTarget = null;
+                heldButtons = 0;
+            }
+            Input input = fenced.input();
+            try {
+                switch (input) {
+                    case MouseMove m -> mouseMove(content, m);
+                    case MouseButton b -> mouseButton(content, b);
+                    case Wheel w -> wheel(content, w);
+                    case Key k -> key(content, k);
+                }
+            } catch (RuntimeException e) {
+                log.warn("Failed to apply {}: {}", input, e.toString());
+            }
+        }
+    }
+
+    private void mouseMove(Container content, MouseMove m) {
+        Component under = componentAt(content, m.x(), m.y());
+        if (heldButtons != 0 && pressTarget != null) {
+            // Drags go to the component the press started on, even outside it.
+            dispatchMouse(content, pressTarget, MouseEvent.MOUSE_DRAGGED, m.x(), m.y(), m.mods(), 0, MouseEvent.NOBUTTON);
+            return;
+        }
+        hover(content, under, m.x(), m.y(), m.mods());
+        dispatchMouse(content, under, MouseEvent.MOUSE_MOVED, m.x(), m.y(), m.mods(), 0, MouseEvent.NOBUTTON);
+    }
+
+    private void mouseButton(Container content, MouseButton b) {
+        int awtButton = awtButton(b.button());
+        if (awtButton == MouseEvent.NOBUTTON) return;
+        int mask = InputEvent.getMaskForButton(awtButton);
+        Component under = componentAt(content, b.x(), b.y());
+        long now = System.currentTimeMillis();
+
+        if (b.down()) {
+            if ((heldButtons & mask) != 0) return;
+            boolean repeat = awtButton == lastClickButton && now - lastClickAt <= MULTI_CLICK_MILLIS;
+            clickCount = repeat ? clickCount + 1 : 1;
+            if (heldButtons == 0) {
+                hover(content, under, b.x(), b.y(), b.mods());
+                pressTarget = under;
+            }
+            heldButtons |= mask;
+            dispatchMouse(content, pressTarget, MouseEvent.MOUSE_PRESSED, b.x(), b.y(), b.mods(), clickCount, awtButton);
+            swingApp.focusClicked(pressTarget);
+            return;
+        }
+
+        if ((heldButtons & mask) == 0 || pressTarget == null) return;
+        heldButtons &= ~mask;
+        Component target = pressTarget;
+        dispatchMouse(content, target, MouseEvent.MOUSE_RELEASED, b.x(), b.y(), b.mods(), clickCount, awtButton);
+        if (under == target) {
+            dispatchMouse(content, target, MouseEvent.MOUSE_CLICKED, b.x(), b.y(), b.mods(), clickCount, awtButton);
+        }
+        lastClickButton = awtButton;
+        lastClickAt = now;
+        if (heldButtons == 0) {
+            pressTarget = null;
+            hover(content, under, b.x(), b.y(), b.mods());
+        }
+    }
+
+    private void wheel(Container content, Wheel w) {
+        if (w.rotation() == 0) return;
+        Component target = componentAt(content, w.x(), w.y());
+        Point local = SwingUtilities.convertPoint(content, w.x(), w.y(), target);
+        target.dispatchEvent(new MouseWheelEvent(target, MouseEvent.MOUSE_WHEEL, System.currentTimeMillis(),
+                awtModifiers(w.mods()) | heldButtons, local.x, local.y, 0, false,
+                MouseWheelEvent.WHEEL_UNIT_SCROLL, WHEEL_SCROLL_AMOUNT, w.rotation()));
+    }
+
+    private void key(Container content, Key k) {
+        String key = k.key();
+        int keyCode;
+        char keyChar;
+        if (key.length() == 1) {
+            keyChar = key.charAt(0);
+            keyCode = KeyEvent.getExtendedKeyCodeForChar(keyChar);
+        } else {
+            Integer code = NAMED_KEYS.get(key);
+            if (code == null) return;
+            keyCode = code;
+            keyChar = NAMED_KEY_CHARS.getOrDefault(key, KeyEvent.CHAR_UNDEFINED);
+        }
+
+        Component target = swingApp.getFocusOwner();
+        if (target == null) target = content;
+        long now = System.currentTimeMillis();
+        int modifiers = awtModifiers(k.mods());
+
+        if (!k.down()) {
+            target.dispatchEvent(new KeyEvent(target, KeyEvent.KEY_RELEASED, now, modifiers, keyCode, keyChar));
+            return;
+        }
+        target.dispatchEvent(new KeyEvent(target, KeyEvent.KEY_PRESSED, now, modifiers, keyCode, keyChar));
+        // Shortcuts type nothing, as on a desktop.
+        boolean shortcut = (k.mods() & (MOD_CTRL | MOD_META)) != 0;
+        if (keyChar != KeyEvent.CHAR_UNDEFINED && !shortcut) {
+            target.dispatchEvent(new KeyEvent(target, KeyEvent.KEY_TYPED, now, modifiers, KeyEvent.VK_UNDEFINED, keyChar));
+        }
+    }
+
+    /** Sends exit and enter events when the pointer moves onto another component. */
+    private void hover(Container content, Component under, int x, int y, int mods) {
+        if (under == hoverTarget) return;
+        if (hoverTarget != null && hoverTarget.isShowing()) {
+            dispatchMouse(content, hoverTarget, MouseEvent.MOUSE_EXITED, x, y, mods, 0, MouseEvent.NOBUTTON);
+        }
+        hoverTarget = under;
+        dispatchMouse(content, under, MouseEvent.MOUSE_ENTERED, x, y, mods, 0, MouseEvent.NOBUTTON);
+    }
+
+    private void dispatchMouse(Container content, Component target, int id, int x, int y,
+                               int mods, int clickCount, int button) {
+        Point local = SwingUtilities.convertPoint(content, x, y, target);
+        boolean popupTrigger = id == MouseEvent.MOUSE_PRESSED && button == MouseEvent.BUTTON3;
+        // Screen coordinates are given as content-pane ones: offscreen there is no screen, and looking it up throws.
+        target.dispatchEvent(new MouseEvent(target, id, System.currentTimeMillis(),
+                awtModifiers(mods) | heldButtons, local.x, local.y, x, y, clickCount, popupTrigger, button));
+    }
+
+    private static Component componentAt(Container content, int x, int y) {
+        Component c = SwingUtilities.getDeepestComponentAt(content, x, y);
+        return c != null ? c : content;
+    }
+
+    private static int awtButton(int browserButton) {
+        return switch (browserButton) {
+            case 0 -> MouseEvent.BUTTON1;
+            case 1 -> MouseEvent.BUTTON2;
+            case 2 -> MouseEvent.BUTTON3;
+            default -> MouseEvent.NOBUTTON;
+        };
+    }
+
+    private static int awtModifiers(int mods) {
+        int m = 0;
+        if ((mods & MOD_SHIFT) != 0) m |= InputEvent.SHIFT_DOWN_MASK;
+        if ((mods & MOD_CTRL) != 0) m |= InputEvent.CTRL_DOWN_MASK;
+        if ((mods & MOD_ALT) != 0) m |= InputEvent.ALT_DOWN_MASK;
+        if ((mods & MOD_META) != 0) m |= InputEvent.META_DOWN_MASK;
+        return m;
     }
 }
@@ -0,0 +1,170 @@
+package com.vnc.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * One output resolution of an app, with its own encoder, viewers and quality
+ * control. The encoder only runs while the rendition has viewers: the first
+ * join starts it and the last leave stops it.
+ */
+public class Rendition {
+
+    private static final Logger log = LoggerFactory.getLogger(Rendition.class);
+
+    private final String name;
+    private final int width;
+    private final int height;
+    private final int fps;
+    private final String preset;
+    private final H264EncoderService encoder;
+    private final BroadcastService broadcastService;
+    private final AdaptiveQuality adaptiveQuality;
+
+    private volatile StreamRecorder recorder;
+    private boolean running; // guarded by this
+    private long generation; // guarded by this; counts encoder starts
+
+    /**
+     * {@code gopCacheMaxBytes} and {@code rewindNanos} bound the recent GOPs
+     * kept for joining viewers; see {@link BroadcastService}.
+     */
+    public Rendition(String name, int width, int height, int fps, String preset,
+                     long gopCacheMaxBytes, long rewindNanos, PipelineMetrics.RenditionMetrics metrics) {
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        this.preset = preset;
+        this.encoder = new H264EncoderService(metrics);
+        this.broadcastService = new BroadcastService(metrics, gopCacheMaxBytes, rewindNanos);
+        this.adaptiveQuality = new AdaptiveQuality(encoder, broadcastService);
+        broadcastService.setKeyframeRequestListener(encoder::requestKeyframe);
+        metrics.gopCache(broadcastService);
+    }
+
+    /** Starts the encoder if needed; the viewer's burst starts {@code rewindNanos} back if that much is cached. */
+    public synchronized void addClient(String id, WebSocketSession session, long rewindNanos) {
+        if (!running) {
+            encoder.start(width, height, fps, preset);
+            byte[] config = encoder.getCodecConfig();
+            if (config != null) {
+                broadcastService.setCodecConfig(config);
+                if (recorder != null) {
+                    recorder.begin(config, width, height, fps, encoder.getStartTimeMillis());
+                }
+            }
+            running = true;
+            generation++;
+            log.info("Rendition {} ({}x{}) started", name, width, height);
+        }
+        broadcastService.addClient(id, session, rewindNanos);
+    }
+
+    /** Asks the encoder for an IDR, e.g. for a relay's viewer; rate-limited by the encoder. */
+    public void requestKeyframe() {
+        encoder.requestKeyframe();
+    }
+
+    /** Tees this rendition's encoded stream to {@code recorder} whenever the encoder runs. */
+    void setRecorder(StreamRecorder recorder) {
+        this.recorder = recorder;
+        recorder.setKeyframeRequestListener(encoder::requestKeyframe);
+    }
+
+    /** Closes every viewer's connection, e.g. when the app is deleted. */
+    public synchronized void disconnectAll() {
+        broadcastService.disconnectAll();
+    }
+
+    public synchronized void removeClient(String id) {
+        broadcastService.removeClient(id);
+        if (running && !broadcastService.hasClients()) {
+            stopEncoder();
+        }
+    }
+
+    public synchronized void stop() {
+        if (running) {
+            stopEncoder();
+        }
+    }
+
+    /** Caller holds this. */
+    private void stopEncoder() {
+        encoder.stop();
+        if (recorder != null) {
+            recorder.end();
+        }
+        // The next encoder instance starts a new stream; its frames cannot follow these.
+        broadcastService.clearCachedFrames();
+        running = false;
+        log.info("Rendition {} ({}x{}) stopped", name, width, height);
+    }
+
+    public boolean hasClients() {
+        return broadcastService.hasClients();
+    }
+
+    public boolean isKeyframeDue() {
+        return hasClients() && encoder.isKeyframeDue();
+    }
+
+    /**
+     * Encodes the current picture for this rendition's viewers. Returns false
+     * if the encoder produced no packet; a stopped encoder never does.
+     * {@code capturedAt} is the {@link System#nanoTime()} the picture's
+     * capture started, for the end-to-end latency metric.
+     *
+     * <p>Encoding runs without the lock, so the encoder may be stopped, and
+     * even restarted, while a packet is in flight. The packet is published
+     * under the lock, and only if the encoder that produced it is still the
+     * running one; otherwise it would land in the cache after
+     * {@link #stopEncoder()} cleared it.
+     */
+    boolean encode(FrameScaler scaler, long capturedAt) {
+        long started;
+        synchronized (this) {
+            if (!running) return false;
+            started = generation;
+        }
+        FrameBufferPool.Frame frame = encoder.encode(scaler.frameFor(width, height));
+        if (frame == null) return false;
+        boolean keyframe = encoder.isLastFrameKeyframe();
+        try {
+            synchronized (this) {
+                if (!running || generation != started) return false;
+                StreamRecorder r = recorder;
+                if (r != null) {
+                    r.offer(frame, keyframe);
+                }
+                broadcastService.broadcastFrame(frame, keyframe, capturedAt);
+            }
+        } finally {
+            frame.release();
+        }
+        adaptiveQuality.onFrameEncoded(System.currentTimeMillis());
+        return true;
+    }
+
+    public String getName() { return name; }
+    public BroadcastService getBroadcastService() { return broadcastService; }
+
+    public Stats getStats() {
+        return new Stats(name, width, height, hasClients(), broadcastService.getClientIds().size(),
+                encoder.getQualityLevel(), encoder.getFramePoolStats().allocated(),
+                broadcastService.getGopCacheBytes(), broadcastService.getGopCacheFrames());
+    }
+
+    /**
+     * {@code active} is whether the encoder has viewers; {@code qualityLevel}
+     * is its rung on the quality ladder (0 = best) and
+     * {@code frameBufferAllocations} the direct output buffers it has created,
+     * which stops growing once its pool has warmed up. {@code gopCacheBytes}
+     * and {@code gopCacheFrames} are what it holds for joining viewers.
+     */
+    public record Stats(String name, int width, int height, boolean active, int clients,
+                        int qualityLevel, long frameBufferAllocations,
+                        long gopCacheBytes, int gopCacheFrames) {}
+}
@@ -0,0 +1,166 @@
+package com.vnc.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays an app's recording to one viewer, from any point in time. A seek
+ * finds the keyframe at or before the requested time through the catalog and
+ * the segment's index, then samples are read straight out of the mapped
+ * segment at their recorded pacing. Playback carries on into later segments
+ * as they are finished, and idles at the end of the recording until the next
+ * seek.
+ *
+ * <p>Frames go out through a {@link BroadcastService} of this viewer's own,
+ * with the live wire format and send queue: a viewer that falls behind has
+ * deltas dropped and resumes at the next recorded keyframe. Their timestamps
+ * are the recorded ones, the time from the segment start.
+ *
+ * <p>A segment that cannot be read or parsed is skipped. If playback itself
+ * fails, the viewer is closed with {@link CloseStatus#SERVER_ERROR}.
+ */
+public class ReplaySession {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplaySession.class);
+
+    private static final long STOP = Long.MIN_VALUE;
+    private static final int IDLE_FRAME_BUFFERS = 4;
+
+    private final String id;
+    private final RecordingCatalog catalog;
+    private final BroadcastService broadcastService;
+    private final FrameBufferPool framePool = new FrameBufferPool(IDLE_FRAME_BUFFERS);
+    private final BlockingQueue<Long> seeks = new LinkedBlockingQueue<>();
+
+    ReplaySession(String id, WebSocketSession session, RecordingCatalog catalog,
+                  PipelineMetrics.RenditionMetrics metrics, long startEpochMs) {
+        this.id = id;
+        this.catalog = catalog;
+        this.broadcastService = new BroadcastService(metrics, 0, 0);
+        broadcastService.addClient(id, session);
+        seeks.add(startEpochMs);
+        Thread.ofVirtual().name("vnc-replay-" + id).start(this::run);
+    }
+
+    /** Restarts playback at the keyframe at or before {@code epochMs}. */
+    public void seek(long epochMs) {
+        seeks.add(epochMs);
+    }
+
+    /** Closes the viewer's connection, e.g. when the app is deleted. */
+    public void disconnect() {
+        broadcastService.disconnectAll();
+    }
+
+    /** Stops playback and drops the viewer's queued frames. */
+    public void close() {
+        seeks.add(STOP);
+        broadcastService.removeClient(id);
+    }
+
+    private void run() {
+        try {
+            long target = seeks.take();
+            while (target != STOP) {
+                RecordingCatalog.Position from = catalog.locate(target);
+                Long next = from != null ? play(from) : null;
+                // At the end of the recording, or with nothing recorded yet: wait for a seek.
+                target = next != null ? next : seeks.take();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            log.error("Replay {} failed", id, e);
+            broadcastService.disconnectAll(CloseStatus.SERVER_ERROR);
+        } finally {
+            broadcastService.clearCachedFrames();
+        }
+    }
+
+    /** Plays from {@code from} until the recording ends (null) or a seek arrives (its target). */
+    private Long play(RecordingCatalog.Position from) throws InterruptedException {
+        RecordingCatalog.Segment segment = from.segment();
+        long offset = segment.index().moofOffset(from.entry());
+        while (segment != null) {
+            Long seek = playSegment(segment, offset);
+            if (seek != null) return seek;
+            segment = catalog.next(segment);
+            if (segment != null) offset = segment.index().moofOffset(0);
+        }
+        return null;
+    }
+
+    private Long playSegment(RecordingCatalog.Segment segment, long startOffset) throws InterruptedException {
+        ByteBuffer file;
+        try (FileChannel channel = FileChannel.open(segment.media(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                log.warn("Replay {} skips {}: larger than 2 GB", id, segment.media());
+                return null;
+            }
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            log.warn("Replay {} cannot open {}", id, segment.media(), e);
+            return null;
+        }
+        broadcastService.broadcastCodecConfig(segment.index().avcC());
+
+        long anchorNanos = System.nanoTime();
+        long anchorMs = -1;
+        int offset = (int) startOffset;
+        try {
+            while (offset < file.limit()) {
+                Fmp4.Fragment fragment = Fmp4.readFragment(file, offset);
+                long timeMs = fragment.baseDecodeTime();
+                int data = fragment.dataOffset();
+                for (int i = 0; i < fragment.sizes().length; i++) {
+                    if (anchorMs < 0) anchorMs = timeMs;
+                    long dueNanos = anchorNanos + TimeUnit.MILLISECONDS.toNanos(timeMs - anchorMs);
+                    Long seek = seeks.poll(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (seek != null) return latestSeek(seek);
+                    send(file, data, fragment.sizes()[i], fragment.keyframes()[i], timeMs);
+                    data += fragment.sizes()[i];
+                    timeMs += fragment.durations()[i];
+                }
+                offset = fragment.end();
+            }
+        } catch (RuntimeException e) {
+            // Corrupt or truncated: parsing and copying throw, e.g. on a bad size or offset.
+            log.warn("Replay {} stopped at a bad fragment in {}", id, segment.media(), e);
+        }
+        return null;
+    }
+
+    /** Copies one sample out of the mapping into a pooled frame in the live wire format. */
+    private void send(ByteBuffer file, int offset, int size, boolean keyframe, long timeMs) {
+        FrameBufferPool.Frame frame = framePool.acquire(H264EncoderService.FRAME_HEADER_BYTES + size);
+        ByteBuffer out = frame.buffer();
+        out.put((byte) (keyframe ? 1 : 0));
+        out.putInt((int) timeMs);
+        out.put(out.position(), file, offset, size);
+        out.position(out.position() + size);
+        out.flip();
+        try {
+            broadcastService.broadcastFrame(frame, keyframe, System.nanoTime());
+        } finally {
+            frame.release();
+        }
+    }
+
+    /** Seeks that queued up while playing collapse into the newest. */
+    private Long latestSeek(long seek) {
+        for (Long next; (next = seeks.poll()) != null; ) {
+            if (seek != STOP) seek = next;
+        }
+        return seek;
+    }
+}
@@ -0,0 +1,342 @@
+package com.vnc.service;
+
+import com.vnc.config.RecordingProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records a rendition's encoded stream to fragmented MP4 files without
+ * encoding it again: the encoder's AVCC access units go into the file as
+ * they are, described by the codec config they were encoded with.
+ *
+ * <p>The encode thread only retains each frame and queues it. A writer
+ * thread owns the files, so a slow disk never holds up capture or viewers.
+ * At most {@link RecordingProperties#queueCapacity()} frames wait for it;
+ * past that frames are dropped, and so are the deltas after them up to the
+ * next keyframe, which the file would not decode without.
+ *
+ * <p>Samples are grouped into fragments of about a second, always starting
+ * a new one at a keyframe. A segment file ends at the first keyframe after
+ * it reaches the configured size or duration, and a keyframe is requested
+ * once it does, so every file starts with an IDR and plays on its own.
+ */
+class StreamRecorder implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(StreamRecorder.class);
+
+    private static final long FRAGMENT_MS = 1000;
+    private static final long CLOSE_TIMEOUT_MS = 2000;
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private final String appId;
+    private final Path directory;
+    private final long segmentMaxBytes;
+    private final long segmentMaxMillis;
+    private final int queueCapacity;
+    private final PipelineMetrics.RecordingMetrics metrics;
+    private final RecordingCatalog catalog;
+    private final BlockingQueue<Item> queue = new LinkedBlockingQueue<>();
+    private final AtomicInteger queuedSamples = new AtomicInteger();
+    private final Thread writer;
+    private volatile Runnable keyframeRequestListener = () -> {};
+    private volatile boolean skipUntilKeyframe = true; // encode thread only, reset by begin()
+    private volatile boolean closed;
+
+    // Writer thread only.
+    private Begin stream;
+    private MappedSegmentFile segment;
+    private MappedSegmentFile index;
+    private int segmentCount;
+    private long segmentStartMs;
+    private int fragmentSequence;
+    private boolean rotationRequested;
+    private final List<Buffered> buffered = new ArrayList<>();
+    private ByteBuffer fragmentData = ByteBuffer.allocate(1 << 20);
+
+    StreamRecorder(String appId, RecordingProperties properties, RecordingCatalog catalog,
+                   PipelineMetrics.RecordingMetrics metrics) {
+        this.appId = appId;
+        this.directory = recordingDirectory(properties, appId);
+        this.catalog = catalog;
+        this.segmentMaxBytes = properties.segmentMaxSize().toBytes();
+        this.segmentMaxMillis = properties.segmentMaxDuration().toMillis();
+        this.queueCapacity = properties.queueCapacity();
+        this.metrics = metrics;
+        this.writer = new Thread(this::run, "vnc-rec-" + appId);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    static Path recordingDirectory(RecordingProperties properties, String appId) {
+        return Path.of(properties.directory(), appId);
+    }
+
+    void setKeyframeRequestListener(Runnable listener) {
+        this.keyframeRequestListener = listener;
+    }
+
+    /**
+     * A new encoder stream starts; {@code avcC} is its codec config and
+     * {@code originEpochMs} the wall-clock time its frame timestamps count
+     * from. Its frames follow.
+     */
+    void begin(byte[] avcC, int width, int height, int fps, long originEpochMs) {
+        if (closed) return;
+        skipUntilKeyframe = true;
+        queue.add(new Begin(avcC, width, height, fps, originEpochMs));
+    }
+
+    /** The stream ended; the open segment is finished. */
+    void end() {
+        if (closed) return;
+        queue.add(End.INSTANCE);
+    }
+
+    /** Queues one encoded frame, retaining it until written. Called on the encode thread. */
+    void offer(FrameBufferPool.Frame frame, boolean keyframe) {
+        if (closed) return;
+        if (skipUntilKeyframe && !keyframe) {
+            metrics.drops.increment();
+            return;
+        }
+        if (queuedSamples.incrementAndGet() > queueCapacity) {
+            queuedSamples.decrementAndGet();
+            skipUntilKeyframe = true;
+            metrics.drops.increment();
+            return;
+        }
+        skipUntilKeyframe = false;
+        queue.add(new Sample(frame.retain()));
+    }
+
+    /** Finishes the open segment and stops the writer thread. */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        queue.add(End.INSTANCE);
+        queue.add(Stop.INSTANCE);
+        try {
+            writer.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            log.warn("Recorder for app {} did not finish within {} ms", appId, CLOSE_TIMEOUT_MS);
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                // With samples buffered, wake up to flush them even if the picture stops changing.
+                Item item = buffered.isEmpty() ? queue.take() : queue.poll(FRAGMENT_MS, TimeUnit.MILLISECONDS);
+                switch (item) {
+                    case null -> flushFragment(-1);
+                    case Begin b -> {
+                        finishSegment();
+                        stream = b;
+                    }
+                    case Sample s -> {
+                        queuedSamples.decrementAndGet();
+                        try {
+                            write(s.frame().view());
+                        } finally {
+                            s.frame().release();
+                        }
+                    }
+                    case End e -> {
+                        finishSegment();
+                        stream = null;
+                    }
+                    case Stop s -> {
+                        drain();
+                        return;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            drain();
+            abortSegment();
+        }
+    }
+
+    /** Releases frames still queued when the writer exits. */
+    private void drain() {
+        for (Item item; (item = queue.poll()) != null; ) {
+            if (item instanceof Sample s) s.frame().release();
+        }
+    }
+
+    private void write(ByteBuffer frame) {
+        if (stream == null) return;
+        boolean keyframe = (frame.get(0) & 1) != 0;
+        int timeMs = frame.getInt(1);
+        frame.position(H264EncoderService.FRAME_HEADER_BYTES);
+
+        if (segment == null) {
+            // After a start, a rotation or a write error: a segment opens on an IDR.
+            if (!keyframe) return;
+            openSegment(timeMs);
+        } else if (keyframe) {
+            flushFragment(timeMs);
+            if (rotationRequested) {
+                finishSegment();
+                openSegment(timeMs);
+            }
+        } else if (!buffered.isEmpty() && timeMs - buffered.get(0).timeMs() >= FRAGMENT_MS) {
+            flushFragment(timeMs);
+        }
+        if (segment == null) return;
+
+        appendSample(frame, timeMs, keyframe);
+        if (!rotationRequested && isRotationDue(timeMs)) {
+            rotationRequested = true;
+            keyframeRequestListener.run();
+        }
+    }
+
+    private boolean isRotationDue(int timeMs) {
+        return segment.size() + fragmentData.position() >= segmentMaxBytes
+                || timeMs - segmentStartMs >= segmentMaxMillis;
+    }
+
+    private void appendSample(ByteBuffer payload, int timeMs, boolean keyframe) {
+        int size = payload.remaining();
+        if (fragmentData.remaining() < size) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(fragmentData.capacity() * 2, fragmentData.position() + size));
+            grown.put(fragmentData.flip());
+            fragmentData = grown;
+        }
+        fragmentData.put(payload);
+        buffered.add(new Buffered(timeMs, size, keyframe));
+    }
+
+    private void openSegment(int timeMs) {
+        String time = ZonedDateTime.now(ZoneOffset.UTC).format(FILE_TIME);
+        String name = appId + "-" + time + "-" + (++segmentCount);
+        Path file = directory.resolve(name + ".mp4");
+        try {
+            segment = new MappedSegmentFile(file, MappedSegmentFile.MEDIA_WINDOW_BYTES);
+            index = new MappedSegmentFile(directory.resolve(name + RecordingIndex.SUFFIX),
+                    MappedSegmentFile.INDEX_WINDOW_BYTES);
+            ByteBuffer init = Fmp4.initSegment(stream.avcC(), stream.width(), stream.height());
+            metrics.bytes.increment(init.remaining());
+            segment.write(init);
+            index.write(RecordingIndex.header(stream.originEpochMs() + timeMs,
+                    stream.width(), stream.height(), stream.avcC()));
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        segmentStartMs = timeMs;
+        fragmentSequence = 0;
+        rotationRequested = false;
+        metrics.segments.increment();
+        log.info("Recording app {} to {}", appId, file);
+    }
+
+    /**
+     * Writes the buffered samples as one fragment. {@code nextTimeMs} is the
+     * time of the sample that follows them, or -1 if unknown, in which case
+     * the last sample lasts one frame interval.
+     */
+    private void flushFragment(int nextTimeMs) {
+        int n = buffered.size();
+        if (n == 0) return;
+        if (segment == null) {
+            clearFragment();
+            return;
+        }
+        List<Fmp4.Sample> samples = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            Buffered b = buffered.get(i);
+            int end = i + 1 < n ? buffered.get(i + 1).timeMs()
+                    : nextTimeMs >= 0 ? nextTimeMs : b.timeMs() + 1000 / stream.fps();
+            samples.add(new Fmp4.Sample(Math.max(1, end - b.timeMs()), b.size(), b.keyframe()));
+        }
+        fragmentData.flip();
+        int decodeTime = (int) (buffered.get(0).timeMs() - segmentStartMs);
+        try {
+            ByteBuffer header = Fmp4.fragmentHeader(++fragmentSequence, decodeTime, samples, fragmentData.remaining());
+            long moofOffset = segment.size();
+            long bytes = header.remaining() + fragmentData.remaining();
+            segment.write(header);
+            segment.write(fragmentData);
+            if (buffered.get(0).keyframe()) {
+                index.write(RecordingIndex.entry(decodeTime, moofOffset));
+            }
+            metrics.bytes.increment(bytes);
+        } catch (IOException e) {
+            fail(e);
+        }
+        clearFragment();
+    }
+
+    private void clearFragment() {
+        buffered.clear();
+        fragmentData.clear();
+    }
+
+    private void finishSegment() {
+        flushFragment(-1);
+        if (segment == null) return;
+        try {
+            // Media first: an index on disk always describes a finished segment.
+            segment.finish();
+            index.finish();
+            catalog.add(index.target());
+            log.info("Recorded app {} to {} ({} bytes)", appId, segment.target(), segment.size());
+        } catch (IOException e) {
+            log.warn("Failed to finish recording {}", segment.target(), e);
+            abortSegment();
+        }
+        segment = null;
+        index = null;
+    }
+
+    /** Drops the open segment; the next keyframe opens a new one. */
+    private void fail(IOException e) {
+        log.warn("Recording app {} failed; resuming at the next keyframe", appId, e);
+        abortSegment();
+    }
+
+    private void abortSegment() {
+        for (MappedSegmentFile f : new MappedSegmentFile[] {segment, index}) {
+            if (f == null) continue;
+            try {
+                f.close();
+            } catch (IOException e) {
+                log.debug("Failed to close {}", f.target(), e);
+            }
+        }
+        segment = null;
+        index = null;
+    }
+
+    private sealed interface Item permits Begin, Sample, End, Stop {}
+
+    private record Begin(byte[] avcC, int width, int height, int fps, long originEpochMs) implements Item {}
+
+    private record Sample(FrameBufferPool.Frame frame) implements Item {}
+
+    private enum End implements Item { INSTANCE }
+
+    private enum Stop implements Item { INSTANCE }
+
+    /** A sample in the fragment being built; its bytes are in {@code fragmentData}. */
+    private record Buffered(int timeMs, int size, boolean keyframe) {}
+}
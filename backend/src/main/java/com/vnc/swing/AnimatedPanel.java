@@ -18,6 +18,7 @@ public class AnimatedPanel extends JPanel {
     };
 
     private final List<Ball> balls = new ArrayList<>();
+    private final Timer timer;
     private int colorIndex;
     private boolean fast;
 
@@ -25,13 +26,25 @@ public class AnimatedPanel extends JPanel {
         setBackground(new Color(25, 25, 40));
         resetBalls();
 
-        Timer timer = new Timer(16, e -> {
-            updateBalls();
+        timer = new Timer(16, e -> {
+            step();
             repaint();
         });
+    }
+
+    // Animate only while displayable, so a disposed app's timer stops with it.
+    @Override
+    public void addNotify() {
+        super.addNotify();
         timer.start();
     }
 
+    @Override
+    public void removeNotify() {
+        timer.stop();
+        super.removeNotify();
+    }
+
     private void resetBalls() {
         balls.clear();
         balls.add(new Ball(200, 150, 3.0, 2.0, PALETTE[0]));
@@ -39,7 +52,8 @@ public class AnimatedPanel extends JPanel {
         balls.add(new Ball(800, 200, 2.0, -2.5, PALETTE[2]));
     }
 
-    private void updateBalls() {
+    /** Advances the animation by one timer tick without repainting. */
+    public void step() {
         double speed = fast ? 2.0 : 1.0;
         int w = getWidth();
         int h = getHeight();
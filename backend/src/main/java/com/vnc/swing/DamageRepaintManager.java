@@ -0,0 +1,131 @@
+package com.vnc.swing;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records repaint damage per tracked root so capture can skip static frames
+ * and repaint only the area that changed. Swing keeps one RepaintManager per
+ * AppContext, so a single instance serves every app.
+ *
+ * <p>Swing only paints and lays out trees under a window. A root tracked as
+ * offscreen has none, so its damage is only recorded, and its invalid
+ * components are queued for the app's next canvas paint to lay out. Both
+ * arrive on the EDT, which owns every tree.
+ */
+public class DamageRepaintManager extends RepaintManager {
+
+    private static DamageRepaintManager instance;
+
+    private final Map<Component, DirtyRegion> regions = new ConcurrentHashMap<>();
+
+    public static synchronized DamageRepaintManager install() {
+        if (instance == null) {
+            instance = new DamageRepaintManager();
+            RepaintManager.setCurrentManager(instance);
+        }
+        return instance;
+    }
+
+    public DirtyRegion track(JComponent root, boolean offscreen) {
+        DirtyRegion region = new DirtyRegion(offscreen);
+        region.markAll();
+        regions.put(root, region);
+        return region;
+    }
+
+    public void untrack(JComponent root) {
+        regions.remove(root);
+    }
+
+    @Override
+    public void addDirtyRegion(JComponent c, int x, int y, int w, int h) {
+        Component root = trackedRoot(c);
+        DirtyRegion region = root != null ? regions.get(root) : null;
+        if (region == null || !region.offscreen) {
+            super.addDirtyRegion(c, x, y, w, h);
+        }
+        if (region != null && w > 0 && h > 0) {
+            region.add(SwingUtilities.convertRectangle(c, new Rectangle(x, y, w, h), root));
+        }
+    }
+
+    @Override
+    public void addInvalidComponent(JComponent c) {
+        Component root = trackedRoot(c);
+        DirtyRegion region = root != null ? regions.get(root) : null;
+        if (region != null && region.offscreen) {
+            // Like Swing, lay out from the nearest validate root, which the whole invalidation reaches.
+            Component validateRoot = c;
+            while (validateRoot != root && !(validateRoot instanceof JComponent jc && jc.isValidateRoot())) {
+                validateRoot = validateRoot.getParent();
+            }
+            region.addInvalid(validateRoot);
+        } else {
+            super.addInvalidComponent(c);
+        }
+    }
+
+    private Component trackedRoot(Component c) {
+        if (regions.isEmpty()) return null;
+        for (Component p = c; p != null; p = p.getParent()) {
+            if (regions.containsKey(p)) return p;
+        }
+        return null;
+    }
+
+    public static final class DirtyRegion {
+
+        private static final Rectangle ALL = new Rectangle(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+        private final boolean offscreen;
+        private Rectangle dirty;
+        private final Set<Component> invalid = new LinkedHashSet<>();
+
+        DirtyRegion(boolean offscreen) {
+            this.offscreen = offscreen;
+        }
+
+        synchronized void add(Rectangle r) {
+            dirty = dirty == null ? r : dirty.union(r);
+        }
+
+        synchronized void addInvalid(Component c) {
+            invalid.add(c);
+        }
+
+        /** Returns and clears the components awaiting layout; always empty unless offscreen. */
+        public synchronized List<Component> takeInvalid() {
+            if (invalid.isEmpty()) return List.of();
+            List<Component> r = new ArrayList<>(invalid);
+            invalid.clear();
+            return r;
+        }
+
+        public synchronized void markAll() {
+            dirty = new Rectangle(ALL);
+        }
+
+        /** Whether damage or layout is waiting for the next paint. */
+        public synchronized boolean isPending() {
+            return dirty != null || !invalid.isEmpty();
+        }
+
+        /**
+         * Returns the accumulated damage clipped to {@code bounds} and resets it,
+         * or {@code null} if nothing inside the bounds changed.
+         */
+        public synchronized Rectangle take(Rectangle bounds) {
+            if (dirty == null) return null;
+            Rectangle r = dirty.intersection(bounds);
+            dirty = null;
+            return r.isEmpty() ? null : r;
+        }
+    }
+}
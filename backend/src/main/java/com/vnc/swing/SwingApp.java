@@ -2,15 +2,58 @@ package com.vnc.swing;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.image.BufferedImage;
 import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * One app's Swing UI. In a window it is a visible {@link JFrame}, which needs
+ * a display. Offscreen it is a {@link JRootPane} in a plain AWT
+ * {@link Container} given a lightweight peer by {@code addNotify()}: it lays
+ * out, animates and takes events like a shown window, but no native window
+ * exists, so the JVM can run headless.
+ *
+ * <p>Both trees belong to the AWT event dispatch thread, which every app
+ * shares. Swing hops to the EDT on its own, for {@code revalidate()}, its
+ * timers and text caret updates, so a tree cannot safely be confined to
+ * another thread. Callers reach the UI through {@link #invokeAndWait} and
+ * {@link #invokeLater}.
+ *
+ * <p>Capture does not wait for the EDT. The EDT paints damage into a canvas
+ * owned by the app, and capture copies from the canvas under its monitor, so
+ * a capture only waits for a paint of its own app. {@link #takeDirtyRegion}
+ * asks for the next paint without waiting for it, so a frame carries the
+ * paint requested one capture earlier.
+ */
 public class SwingApp {
 
     private final String title;
+    private final int width;
+    private final int height;
+    private final boolean offscreen;
     private volatile JFrame frame;
+    private volatile JRootPane root;
+    private volatile DamageRepaintManager.DirtyRegion dirtyRegion;
+    /** Offscreen only: there is no window focus, so the last clicked focusable component takes keys. */
+    private volatile Component focusOwner;
+
+    /** The content pane as last painted on the EDT. Guarded by itself, as is {@code canvasDamage}. */
+    private final BufferedImage canvas;
+    /** Canvas area painted since capture last took it. */
+    private Rectangle canvasDamage;
+    private final AtomicBoolean paintScheduled = new AtomicBoolean();
 
     public SwingApp(String title) {
+        this(title, 1280, 720, false);
+    }
+
+    /** {@code width}x{@code height} is the content-pane size, which is what gets captured. */
+    public SwingApp(String title, int width, int height, boolean offscreen) {
         this.title = title;
+        this.width = width;
+        this.height = height;
+        this.offscreen = offscreen;
+        this.canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
     }
 
     public void start() {
@@ -25,21 +68,44 @@ public class SwingApp {
     }
 
     private void createAndShowGui() {
-        frame = new JFrame(title);
-        frame.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
-        frame.setResizable(false);
-        frame.setLayout(new BorderLayout());
+        DamageRepaintManager repaintManager = DamageRepaintManager.install();
+        if (offscreen) {
+            // Capture paints straight into its own buffer; there is no window to double-buffer for.
+            repaintManager.setDoubleBufferingEnabled(false);
+            root = new JRootPane();
+            buildContent(root.getContentPane());
+            // A lightweight component cannot be made displayable without a parent to forward its events to.
+            Container host = new Container();
+            host.add(root);
+            host.setBounds(0, 0, width, height);
+            root.setBounds(0, 0, width, height);
+            host.addNotify();
+            host.validate();
+        } else {
+            frame = new JFrame(title);
+            frame.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+            frame.setResizable(false);
+            buildContent(frame.getContentPane());
+            frame.getContentPane().setPreferredSize(new Dimension(width, height));
+            frame.pack();
+            frame.setLocationRelativeTo(null);
+            frame.setVisible(true);
+            root = frame.getRootPane();
+        }
+        focusOwner = null;
+        dirtyRegion = repaintManager.track((JComponent) root.getContentPane(), offscreen);
+        // The first capture finds the whole UI in the canvas rather than waiting a tick for it.
+        paintCanvas();
+    }
+
+    private void buildContent(Container content) {
+        content.setLayout(new BorderLayout());
 
         AnimatedPanel animatedPanel = new AnimatedPanel();
-        frame.add(animatedPanel, BorderLayout.CENTER);
+        content.add(animatedPanel, BorderLayout.CENTER);
 
         JPanel controlPanel = buildControlPanel(animatedPanel);
-        frame.add(controlPanel, BorderLayout.SOUTH);
-
-        frame.getContentPane().setPreferredSize(new Dimension(1280, 720));
-        frame.pack();
-        frame.setLocationRelativeTo(null);
-        frame.setVisible(true);
+        content.add(controlPanel, BorderLayout.SOUTH);
     }
 
     private JPanel buildControlPanel(AnimatedPanel animatedPanel) {
@@ -84,16 +150,151 @@ public class SwingApp {
         return btn;
     }
 
-    public JFrame getFrame() {
-        return frame;
+    public boolean isOffscreen() {
+        return offscreen;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /** The captured UI, or {@code null} before the first start. */
+    public Container getContentPane() {
+        JRootPane r = root;
+        return r != null ? r.getContentPane() : null;
+    }
+
+    /** Runs {@code task} on the EDT and waits for it. */
+    public void invokeAndWait(Runnable task) throws InterruptedException, InvocationTargetException {
+        SwingUtilities.invokeAndWait(task);
+    }
+
+    /**
+     * Queues {@code task} on the EDT. Returns false if the app is stopped, in
+     * which case the task is not queued.
+     */
+    public boolean invokeLater(Runnable task) {
+        if (root == null) return false;
+        SwingUtilities.invokeLater(task);
+        return true;
+    }
+
+    /**
+     * Paints the content pane into {@code g}. Offscreen, components
+     * invalidated since the last paint are laid out first, since Swing only
+     * lays out trees under a window. EDT only.
+     */
+    public void paint(Graphics2D g) {
+        JRootPane r = root;
+        if (r == null) return;
+        validateInvalid();
+        r.getContentPane().paint(g);
+    }
+
+    private void validateInvalid() {
+        DamageRepaintManager.DirtyRegion region = dirtyRegion;
+        if (region != null) {
+            for (Component c : region.takeInvalid()) {
+                c.validate();
+            }
+        }
+    }
+
+    /** Paints the damage recorded since the last paint into the canvas. EDT only. */
+    private void paintCanvas() {
+        paintScheduled.set(false);
+        JRootPane r = root;
+        DamageRepaintManager.DirtyRegion region = dirtyRegion;
+        if (r == null || region == null) return;
+        // Lay out first: the damage it records belongs to this paint.
+        validateInvalid();
+        Rectangle clip = region.take(new Rectangle(width, height));
+        if (clip == null) return;
+        synchronized (canvas) {
+            Graphics2D g = canvas.createGraphics();
+            g.setClip(clip);
+            r.getContentPane().paint(g);
+            g.dispose();
+            canvasDamage = canvasDamage == null ? clip : canvasDamage.union(clip);
+        }
+    }
+
+    /**
+     * Copies {@code clip} of the canvas into {@code image}, which must be at
+     * least the content-pane size. Blocks only while the EDT paints this app.
+     */
+    public void copyCanvas(BufferedImage image, Rectangle clip) {
+        synchronized (canvas) {
+            Graphics2D g = image.createGraphics();
+            g.setClip(clip);
+            g.drawImage(canvas, 0, 0, null);
+            g.dispose();
+        }
+    }
+
+    /** Whether the UI exists and is showing: started, and in a window, visible. */
+    public boolean isShowing() {
+        JRootPane r = root;
+        return r != null && r.isShowing();
+    }
+
+    /** The component that should receive key events. EDT only. */
+    public Component getFocusOwner() {
+        if (!offscreen) {
+            JFrame f = frame;
+            return f != null ? f.getFocusOwner() : null;
+        }
+        Component c = focusOwner;
+        return c != null && c.isShowing() ? c : null;
+    }
+
+    /** Gives keyboard focus to a clicked component; in a window the focus manager already has. EDT only. */
+    public void focusClicked(Component target) {
+        if (offscreen && target.isFocusable() && target.isEnabled()) {
+            focusOwner = target;
+        }
+    }
+
+    /**
+     * Returns the canvas area painted since the last call, clipped to
+     * {@code bounds}, or {@code null} if the app has been static. If the UI
+     * has changed since the last paint, queues one on the EDT for the next
+     * call to pick up.
+     */
+    public Rectangle takeDirtyRegion(Rectangle bounds) {
+        DamageRepaintManager.DirtyRegion region = dirtyRegion;
+        if (region != null && region.isPending() && paintScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::paintCanvas);
+        }
+        synchronized (canvas) {
+            Rectangle r = canvasDamage;
+            canvasDamage = null;
+            if (r == null) return null;
+            r = r.intersection(bounds);
+            return r.isEmpty() ? null : r;
+        }
     }
 
     public void stop() {
-        SwingUtilities.invokeLater(() -> {
+        Runnable teardown = () -> {
+            JRootPane r = root;
+            if (r == null) return;
+            DamageRepaintManager.install().untrack((JComponent) r.getContentPane());
             if (frame != null) {
                 frame.setVisible(false);
                 frame.dispose();
+                frame = null;
+            } else {
+                // Releases the lightweight peers and stops the animation timer.
+                r.getParent().removeNotify();
             }
-        });
+            root = null;
+            focusOwner = null;
+        };
+        SwingUtilities.invokeLater(teardown);
     }
 }
@@ -0,0 +1,86 @@
+package com.vnc.websocket;
+
+import com.vnc.service.RemoteControlService;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary form of the control messages, for clients that connect with
+ * {@code ?control=binary}. Every message starts with an opcode byte. Pointer
+ * messages have a fixed size per opcode and are read with absolute gets, so
+ * parsing copies nothing out of the payload. Multi-byte fields are
+ * big-endian, like the frame header.
+ *
+ * <pre>
+ * MOUSE_MOVE  0x01  mods:u8  x:u16  y:u16                 6 bytes
+ * MOUSE_DOWN  0x02  mods:u8  x:u16  y:u16  button:u8      7 bytes
+ * MOUSE_UP    0x03  mods:u8  x:u16  y:u16  button:u8      7 bytes
+ * WHEEL       0x04  mods:u8  x:u16  y:u16  dy:i16         8 bytes
+ * KEY_DOWN    0x05  mods:u8  key:UTF-8 (1..32 bytes)
+ * KEY_UP      0x06  mods:u8  key:UTF-8 (1..32 bytes)
+ * LOCK        0x10                                        1 byte
+ * UNLOCK      0x11                                        1 byte
+ * SEEK        0x20  time:u64 (epoch ms)                   9 bytes, replay only
+ * </pre>
+ *
+ * The server answers with lock status in the binary form of
+ * {@link com.vnc.model.LockStatusMessage}.
+ */
+final class BinaryControlProtocol {
+
+    static final byte MOUSE_MOVE = 0x01;
+    static final byte MOUSE_DOWN = 0x02;
+    static final byte MOUSE_UP = 0x03;
+    static final byte WHEEL = 0x04;
+    static final byte KEY_DOWN = 0x05;
+    static final byte KEY_UP = 0x06;
+    static final byte LOCK = 0x10;
+    static final byte UNLOCK = 0x11;
+    static final byte SEEK = 0x20;
+
+    private static final int MAX_KEY_BYTES = 32;
+
+    private BinaryControlProtocol() {}
+
+    static byte opcode(ByteBuffer buf) {
+        return buf.remaining() > 0 ? buf.get(buf.position()) : 0;
+    }
+
+    /** Decodes an input message, or returns {@code null} if it is malformed or not input. */
+    static RemoteControlService.Input decodeInput(ByteBuffer buf) {
+        int p = buf.position();
+        int len = buf.remaining();
+        byte op = opcode(buf);
+        if (len < 2) return null;
+        int mods = buf.get(p + 1) & 0xFF;
+        return switch (op) {
+            case MOUSE_MOVE -> len == 6
+                    ? new RemoteControlService.MouseMove(u16(buf, p + 2), u16(buf, p + 4), mods) : null;
+            case MOUSE_DOWN, MOUSE_UP -> len == 7
+                    ? new RemoteControlService.MouseButton(u16(buf, p + 2), u16(buf, p + 4),
+                            buf.get(p + 6) & 0xFF, op == MOUSE_DOWN, mods) : null;
+            case WHEEL -> len == 8
+                    ? new RemoteControlService.Wheel(u16(buf, p + 2), u16(buf, p + 4), buf.getShort(p + 6), mods) : null;
+            case KEY_DOWN, KEY_UP -> {
+                int keyLen = len - 2;
+                if (keyLen < 1 || keyLen > MAX_KEY_BYTES) yield null;
+                byte[] key = new byte[keyLen];
+                buf.get(p + 2, key);
+                yield new RemoteControlService.Key(new String(key, StandardCharsets.UTF_8), op == KEY_DOWN, mods);
+            }
+            default -> null;
+        };
+    }
+
+    /** Decodes a seek's target time, or returns -1 if the message is not a well-formed seek. */
+    static long decodeSeek(ByteBuffer buf) {
+        if (buf.remaining() != 9 || opcode(buf) != SEEK) return -1;
+        long time = buf.getLong(buf.position() + 1);
+        return time >= 0 ? time : -1;
+    }
+
+    private static int u16(ByteBuffer buf, int index) {
+        return buf.getShort(index) & 0xFFFF;
+    }
+}
@@ -0,0 +1,87 @@
+package com.vnc.websocket;
+
+import com.vnc.cluster.RelayNode;
+import com.vnc.service.BroadcastService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Routes viewer connections on a relay node, with the same URLs and protocol
+ * as {@link VncWebSocketHandler}. Video comes from the origin's stream, and
+ * control messages are forwarded to the origin as they are. Replays are not
+ * relayed; viewers open them on the origin.
+ */
+@Component
+@ConditionalOnProperty(prefix = "vnc.cluster", name = "role", havingValue = "relay")
+public class RelayWebSocketHandler extends AbstractWebSocketHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(RelayWebSocketHandler.class);
+
+    private final RelayNode relay;
+    private final ConcurrentMap<String, Viewer> viewers = new ConcurrentHashMap<>();
+
+    public RelayWebSocketHandler(RelayNode relay) {
+        this.relay = relay;
+    }
+
+    /** {@code viewerId} is the cluster-wide id the origin knows the viewer by. */
+    private record Viewer(String appId, String viewerId) {}
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) {
+        String appId = VncWebSocketHandler.extractAppId(session);
+        if (VncWebSocketHandler.extractQueryParam(session, "replay") != null) {
+            log.warn("Client {} asked for a replay of app '{}'; replays are served by the origin", session.getId(), appId);
+            try { session.close(CloseStatus.BAD_DATA); } catch (Exception ignored) {}
+            return;
+        }
+        if ("binary".equals(VncWebSocketHandler.extractQueryParam(session, "control"))) {
+            session.getAttributes().put(BroadcastService.BINARY_CONTROL_ATTRIBUTE, true);
+        }
+        String renditionName = VncWebSocketHandler.extractQueryParam(session, "rendition");
+        long rewindNanos = VncWebSocketHandler.parseRewind(VncWebSocketHandler.extractQueryParam(session, "rewind"));
+        String viewerId = relay.join(appId, renditionName, session, rewindNanos);
+        if (viewerId == null) {
+            log.warn("Client {} asked for unknown app '{}' or rendition '{}'", session.getId(), appId, renditionName);
+            try { session.close(CloseStatus.BAD_DATA); } catch (Exception ignored) {}
+            return;
+        }
+        viewers.put(session.getId(), new Viewer(appId, viewerId));
+        log.info("Client {} connected to app '{}' as {}", session.getId(), appId, viewerId);
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        Viewer viewer = viewers.remove(session.getId());
+        if (viewer == null) return;
+        log.info("Client {} disconnected from app '{}' ({})", session.getId(), viewer.appId(), status);
+        relay.leave(viewer.appId(), viewer.viewerId());
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+        Viewer viewer = viewers.get(session.getId());
+        if (viewer != null) relay.forwardControl(viewer.appId(), viewer.viewerId(), message.getPayload());
+    }
+
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) {
+        Viewer viewer = viewers.get(session.getId());
+        if (viewer != null) relay.forwardControl(viewer.appId(), viewer.viewerId(), message.getPayload());
+    }
+
+    @Override
+    public void handleTransportError(WebSocketSession session, Throwable exception) {
+        log.warn("Transport error for {}: {}", session.getId(), exception.getMessage());
+    }
+}
@@ -1,30 +1,50 @@
 package com.vnc.websocket;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.vnc.model.LockStatusMessage;
 import com.vnc.service.AppInstance;
 import com.vnc.service.AppRegistry;
+import com.vnc.service.BroadcastService;
+import com.vnc.service.ControlLockService;
+import com.vnc.service.RemoteControlService;
+import com.vnc.service.Rendition;
+import com.vnc.service.ReplaySession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 
 import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
+/**
+ * Routes viewer connections to apps. Control messages arrive as JSON text
+ * frames or, from clients that connected with {@code ?control=binary}, as
+ * {@link BinaryControlProtocol} frames; those clients also get their lock
+ * status in binary. {@code ?rewind=<seconds>} starts a live viewer up to
+ * that far back in the rendition's cached GOPs, then catches up to live.
+ * A client that connects with {@code ?replay=<epoch ms>}
+ * watches the app's recording from that time instead of the live stream;
+ * its only control message is a seek.
+ */
 @Component
-public class VncWebSocketHandler extends TextWebSocketHandler {
+public class VncWebSocketHandler extends AbstractWebSocketHandler {
 
     private static final Logger log = LoggerFactory.getLogger(VncWebSocketHandler.class);
 
     private final AppRegistry appRegistry;
     private final ObjectMapper objectMapper;
     private final ConcurrentMap<String, AppInstance> sessionToApp = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ReplaySession> sessionToReplay = new ConcurrentHashMap<>();
 
     public VncWebSocketHandler(AppRegistry appRegistry, ObjectMapper objectMapper) {
         this.appRegistry = appRegistry;
@@ -41,22 +61,78 @@ public class VncWebSocketHandler extends TextWebSocketHandler {
             return;
         }
 
+        String replayFrom = extractQueryParam(session, "replay");
+        if (replayFrom != null) {
+            openReplay(session, app, replayFrom);
+            return;
+        }
+
+        String renditionName = extractQueryParam(session, "rendition");
+        Rendition rendition = app.getRendition(renditionName);
+        if (rendition == null) {
+            log.warn("Client {} asked app '{}' for unknown rendition '{}' (have {})",
+                    session.getId(), appId, renditionName, app.getRenditionNames());
+            try { session.close(CloseStatus.BAD_DATA); } catch (Exception ignored) {}
+            return;
+        }
+
+        if ("binary".equals(extractQueryParam(session, "control"))) {
+            session.getAttributes().put(BroadcastService.BINARY_CONTROL_ATTRIBUTE, true);
+        }
+        sessionToApp.put(session.getId(), app);
+        if (!app.addClient(session.getId(), session, rendition, parseRewind(extractQueryParam(session, "rewind")))) {
+            // Deleted between the lookup and the join.
+            sessionToApp.remove(session.getId());
+            try { session.close(CloseStatus.GOING_AWAY); } catch (Exception ignored) {}
+            return;
+        }
+        log.info("Client {} connected to app '{}' rendition {}", session.getId(), appId, rendition.getName());
+        app.sendLockStatusTo(session.getId());
+    }
+
+    private void openReplay(WebSocketSession session, AppInstance app, String from) {
+        long epochMs;
+        try {
+            epochMs = Long.parseLong(from);
+        } catch (NumberFormatException e) {
+            log.warn("Client {} asked app '{}' for replay from '{}'", session.getId(), app.getId(), from);
+            try { session.close(CloseStatus.BAD_DATA); } catch (Exception ignored) {}
+            return;
+        }
+        ReplaySession replay = app.openReplay(session.getId(), session, epochMs);
+        if (replay == null) {
+            try { session.close(CloseStatus.GOING_AWAY); } catch (Exception ignored) {}
+            return;
+        }
         sessionToApp.put(session.getId(), app);
-        log.info("Client {} connected to app '{}'", session.getId(), appId);
-        app.getBroadcastService().addClient(session.getId(), session);
-        sendLockStatusTo(session.getId(), app);
+        sessionToReplay.put(session.getId(), replay);
+        log.info("Client {} replaying app '{}' from {}", session.getId(), app.getId(), epochMs);
+    }
+
+    /** Seconds, fractional allowed; anything unparsable or negative joins live. */
+    static long parseRewind(String seconds) {
+        if (seconds == null) return 0;
+        try {
+            double s = Double.parseDouble(seconds);
+            return s > 0 ? (long) Math.min(s * 1e9, Long.MAX_VALUE / 2) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        if (sessionToReplay.remove(session.getId()) != null) {
+            AppInstance app = sessionToApp.remove(session.getId());
+            if (app != null) app.closeReplay(session.getId());
+            return;
+        }
         AppInstance app = sessionToApp.remove(session.getId());
         if (app == null) return;
 
         log.info("Client {} disconnected from app '{}' ({})", session.getId(), app.getId(), status);
-        app.getBroadcastService().removeClient(session.getId());
-        if (app.getControlLockService().unlock(session.getId())) {
-            broadcastLockStatusToAll(app);
-        }
+        app.removeClient(session.getId());
+        unlock(session.getId(), app);
     }
 
     @Override
@@ -67,60 +143,155 @@ public class VncWebSocketHandler extends TextWebSocketHandler {
         JsonNode node = objectMapper.readTree(message.getPayload());
         String type = node.has("type") ? node.get("type").asText() : "";
 
+        ReplaySession replay = sessionToReplay.get(session.getId());
+        if (replay != null) {
+            if (type.equals("seek") && node.path("time").canConvertToLong()) {
+                replay.seek(node.path("time").asLong());
+            }
+            return;
+        }
+        handleControl(session.getId(), app, type, node);
+    }
+
+    /**
+     * Applies a JSON control message from a viewer of a relay node;
+     * {@code viewerId} is its cluster-wide id. Relays forward control
+     * messages as the viewer sent them, so they are handled like a local
+     * viewer's.
+     */
+    public void handleRelayedControl(String viewerId, AppInstance app, String text) throws JsonProcessingException {
+        JsonNode node = objectMapper.readTree(text);
+        handleControl(viewerId, app, node.has("type") ? node.get("type").asText() : "", node);
+    }
+
+    /** Applies a binary control message from a viewer of a relay node. */
+    public void handleRelayedControl(String viewerId, AppInstance app, ByteBuffer payload) {
+        handleControl(viewerId, app, payload);
+    }
+
+    /** Releases the lock if a viewer that left, on this node or a relay, held it. */
+    public void releaseControl(String viewerId, AppInstance app) {
+        unlock(viewerId, app);
+    }
+
+    private void handleControl(String sessionId, AppInstance app, String type, JsonNode node) {
         switch (type) {
             case "click" -> {
-                if (app.getControlLockService().isController(session.getId())) {
+                long token = app.getControlLockService().fencingToken(sessionId);
+                if (token != ControlLockService.NO_TOKEN) {
                     int x = node.get("x").asInt();
                     int y = node.get("y").asInt();
-                    app.getRemoteControlService().click(x, y);
+                    app.getRemoteControlService().click(x, y, token);
                 }
             }
             case "key" -> {
-                if (app.getControlLockService().isController(session.getId())) {
+                long token = app.getControlLockService().fencingToken(sessionId);
+                if (token != ControlLockService.NO_TOKEN) {
                     String keyStr = node.get("key").asText();
                     if (!keyStr.isEmpty()) {
-                        app.getRemoteControlService().press(keyStr.charAt(0));
+                        app.getRemoteControlService().press(keyStr.charAt(0), token);
                     }
                 }
             }
-            case "lock" -> {
-                if (app.getControlLockService().tryLock(session.getId())) {
-                    broadcastLockStatusToAll(app);
-                }
-            }
-            case "unlock" -> {
-                if (app.getControlLockService().unlock(session.getId())) {
-                    broadcastLockStatusToAll(app);
-                }
-            }
+            case "mousemove", "mousedown", "mouseup", "wheel", "keydown", "keyup" ->
+                    submitInput(sessionId, app, parseInput(type, node));
+            case "lock" -> lock(sessionId, app);
+            case "unlock" -> unlock(sessionId, app);
             default -> log.warn("Unknown message type: {}", type);
         }
     }
 
     @Override
-    public void handleTransportError(WebSocketSession session, Throwable exception) {
-        log.warn("Transport error for {}: {}", session.getId(), exception.getMessage());
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) {
+        AppInstance app = sessionToApp.get(session.getId());
+        if (app == null) return;
+
+        ByteBuffer payload = message.getPayload();
+        ReplaySession replay = sessionToReplay.get(session.getId());
+        if (replay != null) {
+            long time = BinaryControlProtocol.decodeSeek(payload);
+            if (time >= 0) replay.seek(time);
+            return;
+        }
+        handleControl(session.getId(), app, payload);
+    }
+
+    private void handleControl(String sessionId, AppInstance app, ByteBuffer payload) {
+        switch (BinaryControlProtocol.opcode(payload)) {
+            case BinaryControlProtocol.LOCK -> lock(sessionId, app);
+            case BinaryControlProtocol.UNLOCK -> unlock(sessionId, app);
+            default -> {
+                RemoteControlService.Input input = BinaryControlProtocol.decodeInput(payload);
+                if (input == null) {
+                    log.warn("Malformed binary control message ({} bytes) from {}",
+                            payload.remaining(), sessionId);
+                    return;
+                }
+                submitInput(sessionId, app, input);
+            }
+        }
     }
 
-    private void sendLockStatusTo(String sessionId, AppInstance app) {
-        boolean locked = app.getControlLockService().isLocked();
-        boolean isController = app.getControlLockService().isController(sessionId);
-        app.getBroadcastService().sendTo(sessionId, LockStatusMessage.of(locked, isController));
+    private void submitInput(String sessionId, AppInstance app, RemoteControlService.Input input) {
+        if (input == null) return;
+        long token = app.getControlLockService().fencingToken(sessionId);
+        if (token != ControlLockService.NO_TOKEN) {
+            app.getRemoteControlService().submit(input, token);
+        }
     }
 
-    private void broadcastLockStatusToAll(AppInstance app) {
-        boolean locked = app.getControlLockService().isLocked();
-        for (String id : app.getBroadcastService().getClientIds()) {
-            boolean isController = app.getControlLockService().isController(id);
-            app.getBroadcastService().sendTo(id, LockStatusMessage.of(locked, isController));
+    private void lock(String sessionId, AppInstance app) {
+        if (app.getControlLockService().tryLock(sessionId)) {
+            app.publishLockStatus();
         }
     }
 
-    private String extractAppId(WebSocketSession session) {
+    private void unlock(String sessionId, AppInstance app) {
+        if (app.getControlLockService().unlock(sessionId)) {
+            app.publishLockStatus();
+        }
+    }
+
+    private static RemoteControlService.Input parseInput(String type, JsonNode node) {
+        int x = node.path("x").asInt();
+        int y = node.path("y").asInt();
+        int mods = node.path("mods").asInt();
+        return switch (type) {
+            case "mousemove" -> new RemoteControlService.MouseMove(x, y, mods);
+            case "mousedown", "mouseup" -> new RemoteControlService.MouseButton(
+                    x, y, node.path("button").asInt(), type.equals("mousedown"), mods);
+            case "wheel" -> new RemoteControlService.Wheel(x, y, node.path("dy").asInt(), mods);
+            case "keydown", "keyup" -> {
+                String key = node.path("key").asText();
+                yield key.isEmpty() ? null : new RemoteControlService.Key(key, type.equals("keydown"), mods);
+            }
+            default -> null;
+        };
+    }
+
+    @Override
+    public void handleTransportError(WebSocketSession session, Throwable exception) {
+        log.warn("Transport error for {}: {}", session.getId(), exception.getMessage());
+    }
+
+    static String extractAppId(WebSocketSession session) {
         URI uri = session.getUri();
         if (uri == null) return "";
         String path = uri.getPath();
         int lastSlash = path.lastIndexOf('/');
         return lastSlash >= 0 ? path.substring(lastSlash + 1) : path;
     }
+
+    static String extractQueryParam(WebSocketSession session, String name) {
+        URI uri = session.getUri();
+        if (uri == null || uri.getRawQuery() == null) return null;
+        for (String pair : uri.getRawQuery().split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq >= 0 ? pair.substring(0, eq) : pair;
+            if (key.equals(name)) {
+                return eq >= 0 ? URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8) : "";
+            }
+        }
+        return null;
+    }
 }
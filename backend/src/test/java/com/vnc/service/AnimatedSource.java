@@ -0,0 +1,48 @@
+package com.vnc.service;
+
+import com.vnc.swing.AnimatedPanel;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+/**
+ * Paints {@link AnimatedPanel} offscreen, one timer tick per frame, as the
+ * capture source for benchmarks and tests. The panel is never shown, so it
+ * runs in a headless JVM and on any thread.
+ */
+final class AnimatedSource {
+
+    private final AnimatedPanel panel = new AnimatedPanel();
+    private final BufferedImage image;
+
+    AnimatedSource(int width, int height) {
+        panel.setSize(width, height);
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+
+    /** Advances the animation one tick and repaints the whole image. */
+    BufferedImage next() {
+        panel.step();
+        paint();
+        return image;
+    }
+
+    void paint() {
+        Graphics2D g = image.createGraphics();
+        panel.paint(g);
+        g.dispose();
+    }
+
+    AnimatedPanel panel() {
+        return panel;
+    }
+
+    BufferedImage image() {
+        return image;
+    }
+
+    static int[] parseResolution(String resolution) {
+        String[] dims = resolution.split("x");
+        return new int[]{Integer.parseInt(dims[0]), Integer.parseInt(dims[1])};
+    }
+}
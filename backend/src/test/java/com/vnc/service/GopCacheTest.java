@@ -0,0 +1,78 @@
+package com.vnc.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The cache budget against the memory the cache actually holds: encoder
+ * frames sit in pooled buffers of at least 64 KB, so a cache of small
+ * deltas must count and keep right-sized copies, not the pooled buffers.
+ */
+class GopCacheTest {
+
+    private static final long MAX_BYTES = 256 * 1024;
+    private static final long WINDOW_NANOS = 10_000_000_000L;
+    private static final long FRAME_NANOS = 50_000_000L;
+
+    private final FrameBufferPool pool = new FrameBufferPool(8);
+
+    @Test
+    void smallDeltasAreBoundedByHeldBytes() {
+        GopCache cache = new GopCache(MAX_BYTES, WINDOW_NANOS);
+        long now = 0;
+        add(cache, 20_000, true, now);
+        for (int i = 0; i < 400; i++) {
+            now += FRAME_NANOS;
+            add(cache, 500, false, now);
+        }
+
+        assertEquals(400 * 500 + 20_000, heldBytes(cache, now));
+        assertEquals(heldBytes(cache, now), cache.bytes());
+        assertEquals(401, cache.frames());
+    }
+
+    @Test
+    void budgetCapsHeldBytesAcrossGops() {
+        GopCache cache = new GopCache(MAX_BYTES, WINDOW_NANOS);
+        long now = 0;
+        for (int i = 0; i < 2000; i++) {
+            add(cache, i % 40 == 0 ? 30_000 : 2_000, i % 40 == 0, now);
+            now += FRAME_NANOS;
+            long held = heldBytes(cache, now);
+            assertEquals(held, cache.bytes());
+            assertTrue(held <= MAX_BYTES, held + " bytes held over a budget of " + MAX_BYTES);
+        }
+    }
+
+    @Test
+    void cachedFramesDoNotPinPooledBuffers() {
+        GopCache cache = new GopCache(MAX_BYTES, WINDOW_NANOS);
+        add(cache, 1_000, true, 0);
+        add(cache, 100, false, FRAME_NANOS);
+        // The encoder's buffer is back in the pool, and reused; the cache keeps its copies.
+        assertEquals(1, pool.getStats().idle());
+        assertEquals(1, pool.getStats().allocated());
+        assertEquals(1_100, cache.bytes());
+    }
+
+    /** Publishes a frame of {@code size} bytes as the encoder does, caches it and drops the encoder's reference. */
+    private void add(GopCache cache, int size, boolean keyframe, long now) {
+        FrameBufferPool.Frame frame = pool.acquire(size);
+        frame.buffer().put(new byte[size]).flip();
+        cache.add(frame, keyframe, now);
+        frame.release();
+    }
+
+    /** Capacity of every buffer the cache holds, summed over its oldest burst. */
+    private static long heldBytes(GopCache cache, long now) {
+        GopCache.Burst burst = cache.burst(Long.MAX_VALUE / 2, now);
+        long held = 0;
+        for (FrameBufferPool.Frame frame : burst.frames()) {
+            held += frame.buffer().capacity();
+            frame.release();
+        }
+        return held;
+    }
+}
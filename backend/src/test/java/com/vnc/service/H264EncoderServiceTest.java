@@ -0,0 +1,146 @@
+package com.vnc.service;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Golden output for the in-place Annex B to AVCC rewrite: every input goes
+ * through {@link H264EncoderService#annexBToAvcc} and through the NAL-list
+ * path it replaced, built on {@link H264EncoderService#parseAnnexBNals}, and
+ * both must produce the same bytes. The one intended difference is an empty
+ * NAL between adjacent start codes, which the old path failed on and the
+ * rewrite skips; the reference skips it too.
+ */
+class H264EncoderServiceTest {
+
+    private static RecordedStream recorded;
+
+    @BeforeAll
+    static void record() {
+        recorded = RecordedStream.record(320, 240, 60);
+    }
+
+    @Test
+    void recordedPacketsMatchNalListPath() {
+        assertFalse(recorded.packets.isEmpty());
+        for (ByteBuffer packet : recorded.packets) {
+            assertSameOutput(bytes(packet));
+        }
+    }
+
+    /** x264 uses a 4-byte start code for the first NAL and 3-byte ones after it. */
+    @Test
+    void recordedPacketsWithShortStartCodesMatchNalListPath() {
+        for (ByteBuffer packet : recorded.packets) {
+            assertSameOutput(shortenStartCodes(bytes(packet)));
+        }
+    }
+
+    @Test
+    void inBandParameterSetsAreDropped() {
+        byte[] extradata = recorded.extradata;
+        ByteArrayOutputStream au = new ByteArrayOutputStream();
+        au.writeBytes(extradata);
+        au.writeBytes(bytes(recorded.packets.get(0)));
+        assertSameOutput(au.toByteArray());
+        assertEquals(0, rewrite(extradata).length);
+    }
+
+    @Test
+    void startCodeEdgeCases() {
+        byte[][] cases = {
+                {},
+                {0x65},
+                {0, 0},
+                {0, 0, 1},
+                {0, 0, 0, 1},
+                {0, 0, 1, 0x65},
+                {0, 0, 0, 1, 0x65, 1, 2, 3},
+                {0, 0, 1, 0x65, 1, 2, 3},
+                // leading bytes before the first start code are dropped
+                {7, 7, 0, 0, 1, 0x65, 4},
+                {0, 0, 0, 0, 1, 0x65, 4},
+                // 00 00 00 01 against 00 00 01 after a NAL
+                {0, 0, 0, 1, 0x41, 9, 0, 0, 0, 1, 0x41, 8},
+                {0, 0, 1, 0x41, 9, 0, 0, 1, 0x41, 8},
+                {0, 0, 1, 0x41, 9, 0, 0, 0, 0, 1, 0x41, 8},
+                // zeros and 00 00 02 inside a NAL are payload
+                {0, 0, 1, 0x41, 0, 0, 2, 0, 0, 0, 3},
+                {0, 0, 1, 0x41, 5, 0, 0, 0},
+                {0, 0, 1, 0x41, 5, 0, 0},
+                // start code at the very end, and a lone 00 00 00 at the end
+                {0, 0, 1, 0x41, 5, 0, 0, 1},
+                {0, 0, 1, 0x41, 5, 0, 0, 0, 1},
+                // empty NALs between adjacent start codes
+                {0, 0, 1, 0, 0, 1, 0x41, 5},
+                {0, 0, 0, 1, 0, 0, 0, 1, 0x41, 5},
+                {0, 0, 1, 0x41, 5, 0, 0, 1, 0, 0, 0, 1},
+                // SPS and PPS dropped wherever they are
+                {0, 0, 0, 1, 0x67, 1, 2, 0, 0, 0, 1, 0x68, 3, 0, 0, 1, 0x65, 4},
+                {0, 0, 1, 0x65, 4, 0, 0, 1, 0x68, 3, 0, 0, 1, 0x27, 2},
+                {0, 0, 1, 0x67, 1, 0, 0, 1, 0x68, 2},
+                // no start code: copied through unchanged
+                {1, 2, 3, 4, 5},
+                {0, 1, 0, 2, 0, 0, 2, 0, 0},
+        };
+        for (byte[] annexB : cases) {
+            assertSameOutput(annexB);
+        }
+    }
+
+    private static void assertSameOutput(byte[] annexB) {
+        assertArrayEquals(viaNalList(annexB), rewrite(annexB));
+    }
+
+    private static byte[] rewrite(byte[] annexB) {
+        ByteBuffer src = ByteBuffer.allocateDirect(annexB.length);
+        src.put(annexB).flip();
+        ByteBuffer out = ByteBuffer.allocateDirect(annexB.length + annexB.length / 4 + 4);
+        int written = H264EncoderService.annexBToAvcc(src, annexB.length, out);
+        assertEquals(out.position(), written);
+        return bytes(out.flip());
+    }
+
+    /** The rewrite as it was before it worked in place, apart from skipping empty NALs. */
+    private static byte[] viaNalList(byte[] annexB) {
+        List<byte[]> nals = H264EncoderService.parseAnnexBNals(annexB, annexB.length);
+        if (nals.isEmpty()) return annexB.clone();
+        ByteBuffer out = ByteBuffer.allocate(annexB.length + annexB.length / 4 + 4);
+        for (byte[] nal : nals) {
+            if (nal.length == 0) continue;
+            int nalType = nal[0] & 0x1F;
+            if (nalType == 7 || nalType == 8) continue;
+            out.putInt(nal.length);
+            out.put(nal);
+        }
+        return bytes(out.flip());
+    }
+
+    /** Rewrites every 00 00 00 01 after the first as 00 00 01. */
+    private static byte[] shortenStartCodes(byte[] annexB) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(annexB.length);
+        int i = 0;
+        while (i < annexB.length) {
+            if (i > 0 && i + 3 < annexB.length && annexB[i] == 0 && annexB[i + 1] == 0
+                    && annexB[i + 2] == 0 && annexB[i + 3] == 1) {
+                i++;
+            }
+            out.write(annexB[i++]);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(buf.position(), bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,85 @@
+package com.vnc.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.awt.Rectangle;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Real encoder output for {@link AnimatedPanel}, turned back into Annex B
+ * access units as libx264 hands them to {@link H264EncoderService} before
+ * the AVCC rewrite. Every NAL gets a 4-byte start code, where x264 uses 3
+ * bytes after the first; payloads, sizes and the keyframe/delta mix are the
+ * encoder's own.
+ */
+final class RecordedStream {
+
+    /** SPS and PPS in Annex B form, like libx264's global-header extradata. */
+    final byte[] extradata;
+    /** One direct buffer per access unit, positioned at 0. */
+    final List<ByteBuffer> packets;
+
+    private RecordedStream(byte[] extradata, List<ByteBuffer> packets) {
+        this.extradata = extradata;
+        this.packets = packets;
+    }
+
+    static RecordedStream record(int width, int height, int frames) {
+        PipelineMetrics metrics = new PipelineMetrics(new SimpleMeterRegistry(), "bench");
+        FrameScaler scaler = new FrameScaler(width, height, metrics);
+        H264EncoderService encoder = new H264EncoderService(metrics.forRendition("bench"));
+        AnimatedSource source = new AnimatedSource(width, height);
+        Rectangle bounds = new Rectangle(width, height);
+        List<ByteBuffer> packets = new ArrayList<>(frames);
+
+        scaler.start();
+        encoder.start(width, height, 20, "ultrafast");
+        try {
+            for (int i = 0; i < frames; i++) {
+                scaler.update(source.next(), bounds);
+                FrameBufferPool.Frame frame = encoder.encode(scaler.frameFor(width, height));
+                if (frame == null) continue;
+                try {
+                    ByteBuffer avcc = frame.view();
+                    avcc.position(H264EncoderService.FRAME_HEADER_BYTES);
+                    packets.add(toAnnexB(avcc));
+                } finally {
+                    frame.release();
+                }
+            }
+            return new RecordedStream(configToAnnexB(encoder.getCodecConfig()), packets);
+        } finally {
+            encoder.stop();
+            scaler.stop();
+        }
+    }
+
+    private static ByteBuffer toAnnexB(ByteBuffer avcc) {
+        ByteBuffer out = ByteBuffer.allocateDirect(avcc.remaining());
+        while (avcc.remaining() >= 4) {
+            int length = avcc.getInt();
+            out.putInt(1);
+            out.put(avcc.slice(avcc.position(), length));
+            avcc.position(avcc.position() + length);
+        }
+        return out.flip();
+    }
+
+    /** Unpacks the single SPS and PPS of an AVCDecoderConfigurationRecord. */
+    private static byte[] configToAnnexB(byte[] avcc) {
+        ByteBuffer in = ByteBuffer.wrap(avcc);
+        in.position(6);
+        var out = new ByteArrayOutputStream();
+        for (int set = 0; set < 2; set++) {
+            int length = in.getShort() & 0xFFFF;
+            out.writeBytes(new byte[]{0, 0, 0, 1});
+            out.write(avcc, in.position(), length);
+            in.position(in.position() + length);
+            if (set == 0) in.get(); // PPS count
+        }
+        return out.toByteArray();
+    }
+}
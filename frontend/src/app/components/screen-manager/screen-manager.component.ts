@@ -4,6 +4,11 @@ import { RouterLink } from '@angular/router';
 interface AppInfo {
   id: string;
   name: string;
+  width: number;
+  height: number;
+  fps: number;
+  renditions: string[];
+  running: boolean;
 }
 
 @Component({
@@ -26,7 +31,7 @@ interface AppInfo {
                 <div class="card-icon">{{ app.id }}</div>
                 <div class="card-body">
                   <h2>{{ app.name }}</h2>
-                  <span class="card-id">App #{{ app.id }}</span>
+                  <span class="card-id">App #{{ app.id }} · {{ app.width }}×{{ app.height }} @ {{ app.fps }} FPS</span>
                 </div>
                 <span class="arrow">&#8594;</span>
               </a>
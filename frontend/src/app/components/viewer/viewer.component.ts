@@ -1,4 +1,4 @@
-import { Component, OnInit, OnDestroy } from '@angular/core';
+import { Component, OnInit, OnDestroy, signal } from '@angular/core';
 import { ActivatedRoute, RouterLink } from '@angular/router';
 import { VncCanvasComponent } from '../vnc-canvas/vnc-canvas.component';
 import { VncService } from '../../services/vnc.service';
@@ -15,10 +15,17 @@ import { VncService } from '../../services/vnc.service';
           <h1>App #{{ appId }}</h1>
         </div>
         <div class="controls">
+          @if (replay) {
+            <label class="replay">
+              Replay from
+              <input type="datetime-local" step="1" [value]="replayInput" (change)="seek($event)" />
+            </label>
+          }
           <span class="status" [class.connected]="vnc.connected()">
             {{ vnc.connected() ? 'Connected' : 'Disconnected' }}
           </span>
           <button
+            [hidden]="replay"
             class="lock-btn"
             [class.active]="vnc.isController()"
             [disabled]="!vnc.connected() || (vnc.isLocked() && !vnc.isController())"
@@ -29,7 +36,7 @@ import { VncService } from '../../services/vnc.service';
         </div>
       </header>
       <main>
-        <app-vnc-canvas />
+        <app-vnc-canvas [width]="width()" [height]="height()" />
       </main>
     </div>
   `,
@@ -101,6 +108,20 @@ import { VncService } from '../../services/vnc.service';
         color: #66ff88;
       }
 
+      .replay {
+        font-size: 13px;
+        color: #ccc;
+      }
+
+      .replay input {
+        margin-left: 8px;
+        background: #2a2a3a;
+        color: white;
+        border: none;
+        border-radius: 6px;
+        padding: 4px 8px;
+      }
+
       .lock-btn {
         padding: 8px 20px;
         border: none;
@@ -142,6 +163,11 @@ import { VncService } from '../../services/vnc.service';
 })
 export class ViewerComponent implements OnInit, OnDestroy {
   appId = '';
+  /** Set when the page was opened with `?replay=<epoch ms>`. */
+  replay = false;
+  replayInput = '';
+  readonly width = signal(1280);
+  readonly height = signal(720);
 
   constructor(
     public vnc: VncService,
@@ -150,13 +176,32 @@ export class ViewerComponent implements OnInit, OnDestroy {
 
   ngOnInit(): void {
     this.appId = this.route.snapshot.paramMap.get('id') ?? '';
-    this.vnc.connect(this.appId);
+    const query = this.route.snapshot.queryParamMap;
+    const replayFrom = query.has('replay') ? Number(query.get('replay')) : NaN;
+    this.replay = Number.isFinite(replayFrom);
+    if (this.replay) this.replayInput = toLocalInput(replayFrom);
+    this.vnc.connect(this.appId, query.get('rendition'), this.replay ? replayFrom : null);
+    fetch('/api/apps')
+      .then((res) => res.json())
+      .then((apps: { id: string; width: number; height: number }[]) => {
+        const app = apps.find((a) => a.id === this.appId);
+        if (app) {
+          this.width.set(app.width);
+          this.height.set(app.height);
+        }
+      })
+      .catch(() => {});
   }
 
   ngOnDestroy(): void {
     this.vnc.disconnect();
   }
 
+  seek(event: Event): void {
+    const time = new Date((event.target as HTMLInputElement).value).getTime();
+    if (Number.isFinite(time)) this.vnc.seek(time);
+  }
+
   toggleLock(): void {
     if (this.vnc.isController()) {
       this.vnc.releaseLock();
@@ -165,3 +210,9 @@ export class ViewerComponent implements OnInit, OnDestroy {
     }
   }
 }
+
+/** Formats epoch ms for a `datetime-local` input, in local time. */
+function toLocalInput(epochMs: number): string {
+  const d = new Date(epochMs - new Date(epochMs).getTimezoneOffset() * 60000);
+  return d.toISOString().slice(0, 19);
+}
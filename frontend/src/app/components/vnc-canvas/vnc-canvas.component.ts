@@ -1,12 +1,13 @@
 import {
   Component,
   ElementRef,
+  Input,
   ViewChild,
   AfterViewInit,
   OnInit,
   OnDestroy,
 } from '@angular/core';
-import { VncService, H264Frame } from '../../services/vnc.service';
+import { VncService, H264Frame, modifiersOf } from '../../services/vnc.service';
 
 @Component({
   selector: 'app-vnc-canvas',
@@ -14,10 +15,15 @@ import { VncService, H264Frame } from '../../services/vnc.service';
   template: `
     <canvas
       #canvas
-      width="1280"
-      height="720"
-      (click)="onClick($event)"
-      (keydown)="onKeyDown($event)"
+      [width]="width"
+      [height]="height"
+      (mousemove)="onMouseMove($event)"
+      (mousedown)="onMouseButton($event, true)"
+      (mouseup)="onMouseButton($event, false)"
+      (wheel)="onWheel($event)"
+      (contextmenu)="onContextMenu($event)"
+      (keydown)="onKey($event, true)"
+      (keyup)="onKey($event, false)"
       tabindex="0"
     ></canvas>
   `,
@@ -37,6 +43,9 @@ import { VncService, H264Frame } from '../../services/vnc.service';
 })
 export class VncCanvasComponent implements OnInit, AfterViewInit, OnDestroy {
   @ViewChild('canvas') canvasRef!: ElementRef<HTMLCanvasElement>;
+  /** The app's full resolution; renditions are drawn and input is sent in this space. */
+  @Input() width = 1280;
+  @Input() height = 720;
   private ctx!: CanvasRenderingContext2D;
   private decoder: VideoDecoder | null = null;
   private codecDescription: Uint8Array | null = null;
@@ -54,7 +63,7 @@ export class VncCanvasComponent implements OnInit, AfterViewInit, OnDestroy {
     if (!ctx) throw new Error('Canvas 2D context unavailable');
     this.ctx = ctx;
     this.ctx.fillStyle = '#111';
-    this.ctx.fillRect(0, 0, 1280, 720);
+    this.ctx.fillRect(0, 0, this.width, this.height);
   }
 
   ngOnDestroy(): void {
@@ -77,7 +86,8 @@ export class VncCanvasComponent implements OnInit, AfterViewInit, OnDestroy {
 
     this.decoder = new VideoDecoder({
       output: (frame: VideoFrame) => {
-        this.ctx.drawImage(frame, 0, 0);
+        // Smaller renditions are scaled up; input stays in full-resolution app coordinates.
+        this.ctx.drawImage(frame, 0, 0, this.width, this.height);
         frame.close();
       },
       error: (e: DOMException) => {
@@ -87,8 +97,8 @@ export class VncCanvasComponent implements OnInit, AfterViewInit, OnDestroy {
 
     this.decoder.configure({
       codec: 'avc1.42001e',
-      codedWidth: 1280,
-      codedHeight: 720,
+      codedWidth: this.width,
+      codedHeight: this.height,
       description: this.codecDescription!,
     });
 
@@ -125,22 +135,46 @@ export class VncCanvasComponent implements OnInit, AfterViewInit, OnDestroy {
     }
   }
 
-  onClick(event: MouseEvent): void {
+  onMouseMove(event: MouseEvent): void {
     if (!this.vncService.isController()) return;
-    const canvas = this.canvasRef.nativeElement;
-    const rect = canvas.getBoundingClientRect();
-    const scaleX = 1280 / rect.width;
-    const scaleY = 720 / rect.height;
-    const x = (event.clientX - rect.left) * scaleX;
-    const y = (event.clientY - rect.top) * scaleY;
-    this.vncService.sendClick(x, y);
+    const [x, y] = this.toAppCoordinates(event);
+    this.vncService.sendMouseMove(x, y, modifiersOf(event));
   }
 
-  onKeyDown(event: KeyboardEvent): void {
+  onMouseButton(event: MouseEvent, down: boolean): void {
     if (!this.vncService.isController()) return;
-    if (event.key.length === 1) {
-      event.preventDefault();
-      this.vncService.sendKey(event.key);
-    }
+    if (down) this.canvasRef.nativeElement.focus();
+    const [x, y] = this.toAppCoordinates(event);
+    this.vncService.sendMouseButton(x, y, event.button, down, modifiersOf(event));
+  }
+
+  onWheel(event: WheelEvent): void {
+    if (!this.vncService.isController()) return;
+    event.preventDefault();
+    // One notch per ~100 px (or 3 lines) of scroll, at least one per event.
+    const amount = event.deltaMode === WheelEvent.DOM_DELTA_LINE ? event.deltaY / 3 : event.deltaY / 100;
+    const notches = Math.sign(amount) * Math.max(1, Math.round(Math.abs(amount)));
+    if (notches === 0) return;
+    const [x, y] = this.toAppCoordinates(event);
+    this.vncService.sendWheel(x, y, notches, modifiersOf(event));
+  }
+
+  onContextMenu(event: MouseEvent): void {
+    // The right button belongs to the remote app while in control.
+    if (this.vncService.isController()) event.preventDefault();
+  }
+
+  onKey(event: KeyboardEvent, down: boolean): void {
+    if (!this.vncService.isController()) return;
+    if (event.key === 'Dead' || event.key === 'Unidentified' || event.isComposing) return;
+    event.preventDefault();
+    this.vncService.sendKey(event.key, down, modifiersOf(event));
+  }
+
+  private toAppCoordinates(event: MouseEvent): [number, number] {
+    const rect = this.canvasRef.nativeElement.getBoundingClientRect();
+    const x = (event.clientX - rect.left) * (this.width / rect.width);
+    const y = (event.clientY - rect.top) * (this.height / rect.height);
+    return [x, y];
   }
 }
@@ -6,6 +6,33 @@ export interface LockStatusMessage {
   you: boolean;
 }
 
+/** Bits of the `mods` field of input messages. */
+export const MOD_SHIFT = 1;
+export const MOD_CTRL = 2;
+export const MOD_ALT = 4;
+export const MOD_META = 8;
+
+export function modifiersOf(event: MouseEvent | KeyboardEvent): number {
+  return (
+    (event.shiftKey ? MOD_SHIFT : 0) |
+    (event.ctrlKey ? MOD_CTRL : 0) |
+    (event.altKey ? MOD_ALT : 0) |
+    (event.metaKey ? MOD_META : 0)
+  );
+}
+
+/** Opcodes of binary control messages; see docs/protocol.md. */
+const OP_MOUSE_MOVE = 0x01;
+const OP_MOUSE_DOWN = 0x02;
+const OP_MOUSE_UP = 0x03;
+const OP_WHEEL = 0x04;
+const OP_KEY_DOWN = 0x05;
+const OP_KEY_UP = 0x06;
+const OP_LOCK = 0x10;
+const OP_UNLOCK = 0x11;
+const OP_SEEK = 0x20;
+const LOCK_STATUS_MARKER = 0xfe;
+
 export interface H264Frame {
   keyframe: boolean;
   timestamp: number;
@@ -19,17 +46,29 @@ export class VncService {
   private frameCallback: ((frame: H264Frame) => void) | null = null;
   private configCallback: ((config: Uint8Array) => void) | null = null;
   private currentAppId: string | null = null;
+  private currentRendition: string | null = null;
+  private currentReplay: number | null = null;
+  private pendingMove: ArrayBuffer | null = null;
+  private readonly textEncoder = new TextEncoder();
+  private moveFrame: number | null = null;
 
   readonly connected = signal(false);
   readonly isController = signal(false);
   readonly isLocked = signal(false);
 
-  connect(appId: string): void {
+  /** With `replayFrom` (epoch ms), plays the app's recording from then instead of the live stream. */
+  connect(appId: string, rendition: string | null = null, replayFrom: number | null = null): void {
     this.cleanup();
     this.currentAppId = appId;
+    this.currentRendition = rendition;
+    this.currentReplay = replayFrom;
 
     const protocol = location.protocol === 'https:' ? 'wss:' : 'ws:';
-    const url = `${protocol}//${location.host}/ws/${appId}`;
+    const params = new URLSearchParams({ control: 'binary' });
+    if (rendition) params.set('rendition', rendition);
+    if (replayFrom !== null) params.set('replay', String(replayFrom));
+    const query = `?${params}`;
+    const url = `${protocol}//${location.host}/ws/${appId}${query}`;
 
     const ws = new WebSocket(url);
     ws.binaryType = 'arraybuffer';
@@ -77,25 +116,83 @@ export class VncService {
     this.configCallback = callback;
   }
 
-  sendClick(x: number, y: number): void {
-    this.send({ type: 'click', x: Math.round(x), y: Math.round(y) });
+  /** Sends at most one pointer move per animation frame, the latest. */
+  sendMouseMove(x: number, y: number, mods: number): void {
+    this.pendingMove = this.pointerMessage(OP_MOUSE_MOVE, 6, x, y, mods);
+    if (this.moveFrame === null) {
+      this.moveFrame = requestAnimationFrame(() => this.flushMove());
+    }
   }
 
-  sendKey(key: string): void {
-    this.send({ type: 'key', key });
+  sendMouseButton(x: number, y: number, button: number, down: boolean, mods: number): void {
+    this.flushMove();
+    const msg = this.pointerMessage(down ? OP_MOUSE_DOWN : OP_MOUSE_UP, 7, x, y, mods);
+    new DataView(msg).setUint8(6, button);
+    this.send(msg);
+  }
+
+  /** `dy` is in wheel notches, positive scrolling down. */
+  sendWheel(x: number, y: number, dy: number, mods: number): void {
+    this.flushMove();
+    const msg = this.pointerMessage(OP_WHEEL, 8, x, y, mods);
+    new DataView(msg).setInt16(6, Math.max(-32768, Math.min(32767, dy)));
+    this.send(msg);
+  }
+
+  /** `key` is the browser's `KeyboardEvent.key`. */
+  sendKey(key: string, down: boolean, mods: number): void {
+    const keyBytes = this.textEncoder.encode(key);
+    if (keyBytes.length === 0 || keyBytes.length > 32) return;
+    const msg = new Uint8Array(2 + keyBytes.length);
+    msg[0] = down ? OP_KEY_DOWN : OP_KEY_UP;
+    msg[1] = mods;
+    msg.set(keyBytes, 2);
+    this.send(msg);
   }
 
   requestLock(): void {
-    this.send({ type: 'lock' });
+    this.send(Uint8Array.of(OP_LOCK));
   }
 
   releaseLock(): void {
-    this.send({ type: 'unlock' });
+    this.send(Uint8Array.of(OP_UNLOCK));
+  }
+
+  /** Replay only: restarts playback at the recorded keyframe at or before `epochMs`. */
+  seek(epochMs: number): void {
+    this.currentReplay = epochMs;
+    const msg = new ArrayBuffer(9);
+    const view = new DataView(msg);
+    view.setUint8(0, OP_SEEK);
+    view.setBigUint64(1, BigInt(Math.max(0, Math.floor(epochMs))));
+    this.send(msg);
   }
 
-  private send(msg: object): void {
+  /** Opcode, mods and clamped x/y; the caller fills any bytes after offset 6. */
+  private pointerMessage(op: number, length: number, x: number, y: number, mods: number): ArrayBuffer {
+    const buf = new ArrayBuffer(length);
+    const view = new DataView(buf);
+    view.setUint8(0, op);
+    view.setUint8(1, mods);
+    view.setUint16(2, Math.max(0, Math.min(65535, Math.round(x))));
+    view.setUint16(4, Math.max(0, Math.min(65535, Math.round(y))));
+    return buf;
+  }
+
+  private flushMove(): void {
+    if (this.moveFrame !== null) {
+      cancelAnimationFrame(this.moveFrame);
+      this.moveFrame = null;
+    }
+    if (this.pendingMove) {
+      this.send(this.pendingMove);
+      this.pendingMove = null;
+    }
+  }
+
+  private send(msg: ArrayBuffer | Uint8Array): void {
     if (this.ws?.readyState === WebSocket.OPEN) {
-      this.ws.send(JSON.stringify(msg));
+      this.ws.send(msg);
     }
   }
 
@@ -105,6 +202,13 @@ export class VncService {
 
     const firstByte = view[0];
 
+    if (firstByte === LOCK_STATUS_MARKER) {
+      if (view.length < 2) return;
+      this.isLocked.set((view[1] & 1) !== 0);
+      this.isController.set((view[1] & 2) !== 0);
+      return;
+    }
+
     if (firstByte === 0xFF) {
       const config = view.slice(1);
       this.configCallback?.(config);
@@ -134,6 +238,11 @@ export class VncService {
   }
 
   private cleanup(): void {
+    if (this.moveFrame !== null) {
+      cancelAnimationFrame(this.moveFrame);
+      this.moveFrame = null;
+    }
+    this.pendingMove = null;
     if (this.ws) {
       this.ws.onclose = null;
       this.ws.onerror = null;
@@ -147,7 +256,9 @@ export class VncService {
     if (this.currentAppId == null) return;
     this.clearReconnect();
     const appId = this.currentAppId;
-    this.reconnectTimer = setTimeout(() => this.connect(appId), 2000);
+    const rendition = this.currentRendition;
+    const replay = this.currentReplay;
+    this.reconnectTimer = setTimeout(() => this.connect(appId, rendition, replay), 2000);
   }
 
   private clearReconnect(): void {